@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Connection slots plus the first-come-first-served waiting room for clients that don't get one.
+// A slot given up while others wait goes straight to the next live waiter, it is never counted as
+// free in between, so late arrivals can't jump the queue and the count can't drift.
+// In a cluster the capacity is shared: slots held on other nodes count against it too
+class AdmissionController<T> {
+    private final int capacity;
+    private final Predicate<T> alive;       // False for waiters whose connection has gone
+    private final LinkedHashMap<Object, T> waiting = new LinkedHashMap<>();     // Insertion ordered, O(1) add, poll and cancel
+    private int inUse = 0;
+    private int elsewhere = 0;      // Slots held on other cluster nodes, as last reported
+
+    public AdmissionController(int capacity, Predicate<T> alive) {
+        this.capacity = capacity;
+        this.alive = alive;
+    }
+
+    // Take a slot if one is free and nobody is ahead, otherwise join the queue.
+    // Returns 0 when admitted, else the position in the queue
+    public synchronized int admit(Object key, T waiter) {
+        if (inUse + elsewhere < capacity && waiting.isEmpty()) {
+            inUse++;
+            return 0;
+        }
+        waiting.put(key, waiter);
+        return waiting.size();
+    }
+
+    // Leave the queue without a slot, false if not queued (e.g. already handed a slot)
+    public synchronized boolean cancel(Object key) {
+        return waiting.remove(key) != null;
+    }
+
+    // Give up a slot. Returns the waiter that now owns it, or null if it was freed.
+    // The new owner must call release() itself if it can't use the slot after all
+    public synchronized T release() {
+        // Over capacity once other nodes filled up, the slot is given back instead
+        if (inUse + elsewhere <= capacity) {
+            T next = pollAlive();
+            if (next != null) {
+                return next;
+            }
+        }
+        if (inUse > 0) {
+            inUse--;
+        }
+        return null;
+    }
+
+    // Slots held elsewhere changed. Returns a waiter that now owns a slot freed up that way, or null.
+    // Call again until it returns null, as for release() the new owner must release() if it can't use it
+    public synchronized T grant() {
+        if (inUse + elsewhere >= capacity) {
+            return null;
+        }
+        T next = pollAlive();
+        if (next != null) {
+            inUse++;
+        }
+        return next;
+    }
+
+    public synchronized void setElsewhere(int elsewhere) {
+        this.elsewhere = Math.max(0, elsewhere);
+    }
+
+    // Next waiter whose connection is still open, taken out of the queue
+    private T pollAlive() {
+        Iterator<T> it = waiting.values().iterator();
+        while (it.hasNext()) {
+            T next = it.next();
+            it.remove();
+            if (alive.test(next)) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    // Waiters in queue order. Ones that disconnected without telling us are dropped on the way
+    public synchronized List<T> waiting() {
+        List<T> snapshot = new ArrayList<>(waiting.size());
+        Iterator<T> it = waiting.values().iterator();
+        while (it.hasNext()) {
+            T next = it.next();
+            if (alive.test(next)) {
+                snapshot.add(next);
+            } else {
+                it.remove();
+            }
+        }
+        return snapshot;
+    }
+
+    // The waiter queued under key, or null if it isn't waiting
+    public synchronized T get(Object key) {
+        return waiting.get(key);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getInUse() {
+        return inUse;
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks logins for the handshake. Logins answered by the credential cache return at once, the
+// rest go through a fixed number of threads with a bounded queue, so a reconnect storm can't have
+// every connection hitting the database and decrypting passwords at the same time. Once the queue
+// is full (or a check takes too long) the login is turned away as busy and the client can retry
+class Authenticator {
+
+    enum Result {
+        ACCEPTED,
+        REJECTED,   // wrong password or unknown username
+        BUSY        // not checked, try again later
+    }
+
+    private final DBConnection database;
+    private final ThreadPoolExecutor pool;
+    private final long timeoutMillis;
+
+    // Metrics
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong checkNanos = new AtomicLong();
+    private volatile long maxCheckNanos = 0;
+
+    public Authenticator(DBConnection database, int threads, int queueCapacity, long timeoutMillis) {
+        this.database = database;
+        this.timeoutMillis = Math.max(1, timeoutMillis);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "auth-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Check a login, blocks the calling thread until it is answered
+    public Result authenticate(String username, String password) {
+        long start = System.nanoTime();
+        Result result = check(username, password);
+        record(result, System.nanoTime() - start);
+        return result;
+    }
+
+    private Result check(String username, String password) {
+        DBConnection.Login cached = database.cachedLogin(username, password);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return cached == DBConnection.Login.ACCEPTED ? Result.ACCEPTED : Result.REJECTED;
+        }
+
+        Future<DBConnection.Login> login;
+        try {
+            login = pool.submit(() -> database.checkLogin(username, password));
+        } catch (RejectedExecutionException e) {
+            return Result.BUSY;
+        }
+        try {
+            switch (login.get(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                case ACCEPTED:
+                    return Result.ACCEPTED;
+                case UNAVAILABLE:
+                    return Result.BUSY;
+                default:
+                    return Result.REJECTED;
+            }
+        } catch (TimeoutException e) {
+            login.cancel(false);    // Drops it if still queued, a running check finishes and fills the cache
+            return Result.BUSY;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return Result.BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            login.cancel(false);
+            return Result.BUSY;
+        }
+    }
+
+    // Register a new user on the same threads as the logins, blocks the calling thread until it is done.
+    // REJECTED if the username is taken
+    public Result register(String username, String password) {
+        Future<Result> registration;
+        try {
+            registration = pool.submit(() -> {
+                if (database.userExists(username)) {
+                    return Result.REJECTED;
+                }
+                return database.registerUser(username, password) ? Result.ACCEPTED : Result.BUSY;
+            });
+        } catch (RejectedExecutionException e) {
+            return Result.BUSY;
+        }
+        try {
+            return registration.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            registration.cancel(false);
+            return Result.BUSY;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return Result.BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            registration.cancel(false);
+            return Result.BUSY;
+        }
+    }
+
+    private void record(Result result, long elapsed) {
+        switch (result) {
+            case ACCEPTED:
+                accepted.incrementAndGet();
+                break;
+            case REJECTED:
+                rejected.incrementAndGet();
+                break;
+            default:
+                busy.incrementAndGet();
+                break;
+        }
+        checks.incrementAndGet();
+        checkNanos.addAndGet(elapsed);
+        if (elapsed > maxCheckNanos) {
+            maxCheckNanos = elapsed;
+        }
+    }
+
+    public void close() {
+        pool.shutdownNow();
+        System.out.println("Authentication closed: " + getMetrics());
+    }
+
+    // Logins waiting for a thread
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public long getBusyCount() {
+        return busy.get();
+    }
+
+    public double getAverageMillis() {
+        long count = checks.get();
+        return count == 0 ? 0 : checkNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxMillis() {
+        return maxCheckNanos / 1e6;
+    }
+
+    public String getMetrics() {
+        return String.format("accepted=%d rejected=%d busy=%d cacheHits=%d queued=%d avg=%.2fms max=%.2fms",
+                accepted.get(), rejected.get(), busy.get(), cacheHits.get(), getQueueDepth(), getAverageMillis(), getMaxMillis());
+    }
+}
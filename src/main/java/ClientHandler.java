@@ -1,110 +1,364 @@
 import javax.crypto.interfaces.PBEKey;
 import java.io.*;
-import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-class ClientHandler implements Runnable {
-    private final Socket clientSocket;
+class ClientHandler {
+    private static final AtomicLong transferIds = new AtomicLong();
+
+    private final ClientTransport transport;
     private final String username;
     private final LUConnectServer server;
-    private PrintWriter writer;
+    private final OutboundQueue outbound;   // Written to the socket by the transport's own writer
+    private final Map<String, Upload> uploads = new HashMap<>();    // Streamed uploads by the sender's transfer id, one packet at a time
+    private final long connectedAt = System.currentTimeMillis();
+    private volatile boolean presenceDeltas = false;    // Asked for PRESENCE, so gets JOINED/LEFT instead of full user lists
+    private volatile boolean heartbeat = false;         // Took up the heartbeat offer, so is expected to PING
+    private volatile long groupFrom = Long.MAX_VALUE;   // First group sequence sent live, earlier ones were replayed
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();    // Rooms joined, kept by RoomIndex
 
-    public ClientHandler(Socket socket, String username, LUConnectServer server) throws IOException {
-        this.clientSocket = socket;
+    public ClientHandler(ClientTransport transport, String username, LUConnectServer server, OutboundQueue outbound) {
+        this.transport = transport;
         this.username = username;
         this.server = server;
-        this.writer = new PrintWriter(socket.getOutputStream(), true);
+        this.outbound = outbound;
     }
 
     public String getUsername() {
         return username;
     }
 
-    // Send message directly to client through socket
-    public void sendMessage(String message) {
-        writer.println(message);
-    }
-
-    @Override
-    public void run() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-            // Send Connected to client so they know they're connected
-            writer.println("CONNECTED");
-
-            // Continuously read incoming messages
-            String message;
-            while ((message = reader.readLine()) != null) {
-                // Chat message
-                if (message.startsWith("MSG:")) {
-                    // Format: MSG:recipient:message
-                    String[] parts = message.split(":", 3);
-
-                    if (parts.length == 3) {
-                        String recipient = parts[1];
-                        String content = parts[2];
-                        server.broadcastMessage(username, content, recipient);
-                    }
-
-                } else if (message.equals("USERS")) {
-
-                    server.sendUserList(this);
-
-                } else if (message.startsWith("FILE:")) {
-                    // Expected format: FILE:recipient:filename:base64data
-                    String[] parts = message.split(":", 4);
-                    if (parts.length < 4) {
-                        sendMessage("SERVER:Invalid file transfer format.");
-                        continue;
-                    }
-                    String recipient = parts[1];
-                    String fileName = parts[2];
-                    String fileData = parts[3];
-
-                    String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
-                    if (!(extension.equals("pdf") || extension.equals("jpeg") || extension.equals("jpg") || extension.equals("docx"))) {
-                        sendMessage("SERVER:Unsupported file type for file " + fileName);
-                        continue;
-                    }
-
-                    // Save file to "ServerFiles" directory
-                    File serverDir = new File("ServerFiles");
-                    if (!serverDir.exists()) {
-                        serverDir.mkdir();
-                    }
-
-                    File outFile = new File(serverDir, fileName);
-                    try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                        byte[] data = java.util.Base64.getDecoder().decode(fileData);
-                        fos.write(data);
-
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        sendMessage("SERVER:Failed to save file " + fileName);
-                        continue;
-                    }
-
-                    // Forward the file to receiving user
-                    ClientHandler targetHandler = server.getClientHandler(recipient);
-                    if (targetHandler != null) {
-                        targetHandler.sendMessage("FILE:" + username + ":" + fileName + ":" + fileData);
-                    } else {
-                        sendMessage("SERVER:User " + recipient + " is not available for file transfer.");
-                    }
-
-                }else if (message.equals("QUIT")) {
-                    break;
+    // Id for a file relayed to a client, unique across all uploads and mailbox deliveries
+    static String newTransferId() {
+        return String.valueOf(transferIds.incrementAndGet());
+    }
+
+    // Queue message for the client in its negotiated encoding, never blocks the caller however slow the client reads.
+    // The same packet can be sent to many clients, it is only encoded once per protocol
+    public void sendMessage(Packet packet) {
+        sendOutbound(new Outbound.Bytes(packet.encoded(transport.isBinary())));
+    }
+
+    public void sendMessage(byte type, String text) {
+        sendMessage(Packet.of(type, text));
+    }
+
+    // Queue a frame of a file transfer, which the overflow policy never drops
+    public boolean sendTransferFrame(Packet packet) {
+        return sendOutbound(new Outbound.Bytes(packet.encoded(transport.isBinary()), false));
+    }
+
+    // Queue anything the transport can write, e.g. a file chunk relayed from the spool.
+    // Returns false if the client was disconnected for not keeping up
+    public boolean sendOutbound(Outbound item) {
+        if (!outbound.offer(item)) {
+            System.out.println(username + " is not keeping up with its messages, disconnecting");
+            transport.abort();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isBinary() {
+        return transport.isBinary();
+    }
+
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    public boolean wantsPresenceDeltas() {
+        return presenceDeltas;
+    }
+
+    public void setPresenceDeltas(boolean presenceDeltas) {
+        this.presenceDeltas = presenceDeltas;
+    }
+
+    public long getGroupFrom() {
+        return groupFrom;
+    }
+
+    public void setGroupFrom(long groupFrom) {
+        this.groupFrom = groupFrom;
+    }
+
+    public ClientTransport getTransport() {
+        return transport;
+    }
+
+    public boolean hasHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(boolean heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public boolean acknowledgesMail() {
+        return transport.acknowledgesMail();
+    }
+
+    // Messages waiting to be written to this client
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    // Messages this client lost because its queue overflowed
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+
+    // Handle one message from the client, returns false once the client wants to leave
+    public boolean handlePacket(Packet packet) {
+        switch (packet.type) {
+            case Packet.MSG:
+                // Chat message: recipient, text
+                if (packet.fields.length == 2) {
+                    server.broadcastMessage(username, packet.fields[1], packet.fields[0]);
+                }
+                break;
+            case Packet.USERS:
+                server.sendUserList(this);
+                break;
+            case Packet.PRESENCE:
+                server.sendPresenceSnapshot(this);
+                break;
+            case Packet.FILE:
+                handleFile(packet);
+                break;
+            case Packet.FILE_START:
+                startUpload(packet);
+                break;
+            case Packet.FILE_CHUNK:
+                uploadChunk(packet);
+                break;
+            case Packet.FILE_END:
+                finishUpload(packet);
+                break;
+            case Packet.HEARTBEAT:
+                server.startHeartbeat(this);
+                break;
+            case Packet.PING:
+                sendMessage(Packet.of(Packet.PONG, packet.fields.length > 0 ? packet.fields[0] : ""));
+                break;
+            case Packet.PONG:
+                // Reading it was the point, the transport has noted the activity
+                break;
+            case Packet.MAILBOX:
+                if (packet.fields.length > 0) {
+                    server.acknowledgeMail(this, packet.fields[0]);
                 }
+                break;
+            case Packet.HISTORY:
+                // Conversation, and the oldest message id the client has (empty for the newest page)
+                if (packet.fields.length > 0) {
+                    server.sendHistory(this, packet.fields[0], packet.field(1));
+                }
+                break;
+            case Packet.JOIN:
+                server.joinRoom(this, packet.field(0));
+                break;
+            case Packet.LEAVE:
+                server.leaveRoom(this, packet.field(0));
+                break;
+            case Packet.QUIT:
+                return false;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    // Streamed upload: recipient, file name, transfer id, size. Chunks follow as separate frames,
+    // so other messages keep flowing in between
+    private void startUpload(Packet packet) {
+        if (packet.fields.length < 4) {
+            sendMessage(Packet.SERVER, "Invalid file transfer format.");
+            return;
+        }
+        String recipient = packet.fields[0];
+        String fileName = new File(packet.fields[1]).getName();
+        String clientId = packet.fields[2];
+
+        long size;
+        try {
+            size = Long.parseLong(packet.fields[3]);
+        } catch (NumberFormatException e) {
+            sendMessage(Packet.SERVER, "Invalid file transfer format.");
+            return;
+        }
+
+        if (!isSupportedFile(fileName)) {
+            sendMessage(Packet.SERVER, "Unsupported file type for file " + fileName);
+            uploads.put(clientId, Upload.REJECTED);
+            return;
+        }
+
+        ClientHandler targetHandler = server.getClientHandler(recipient);
+        if (targetHandler == null && !server.isRegistered(recipient)) {
+            sendMessage(Packet.SERVER, "User " + recipient + " is not available for file transfer.");
+            uploads.put(clientId, Upload.REJECTED);
+            return;
+        }
+
+        try {
+            String relayId = newTransferId();
+            FileTransfer transfer = new FileTransfer(relayId, username, fileName, size);
+            uploads.put(clientId, new Upload(transfer, targetHandler));
+            if (targetHandler == null) {
+                // Offline, the file goes to their mailbox once it is complete
+                File stored = Mailbox.newFile(fileName);
+                transfer.storeAt(stored, () -> server.persistOfflineMessage(username, recipient, fileName, stored.getPath(), size));
+                sendMessage(Packet.SERVER, mailboxNotice(recipient, fileName));
+            } else if (targetHandler.isBinary()) {
+                targetHandler.sendTransferFrame(Packet.of(Packet.FILE_START, username, fileName, relayId, String.valueOf(size)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendMessage(Packet.SERVER, "Failed to save file " + fileName);
+            uploads.put(clientId, Upload.REJECTED);
+        }
+    }
+
+    private void uploadChunk(Packet packet) {
+        Upload upload = uploads.get(packet.field(0));
+        if (upload == null || upload == Upload.REJECTED || packet.data == null) {
+            return;
+        }
+        try {
+            Outbound relay = upload.transfer.append(packet.data);
+            if (upload.recipient != null && upload.recipient.isBinary()) {
+                if (!upload.recipient.sendOutbound(relay)) {
+                    // Disconnected before FILE_END, so the recipient keeps no partial file
+                    sendMessage(Packet.SERVER, "User " + upload.recipient.getUsername() + " could not keep up, "
+                            + upload.transfer.getFileName() + " was not delivered.");
+                    uploads.put(packet.field(0), Upload.REJECTED);
+                    upload.transfer.finish();
+                }
+            } else {
+                // Text clients get the whole file in one line at the end, mailbox files once stored
+                relay.release();
             }
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            sendMessage(Packet.SERVER, "Failed to save file " + upload.transfer.getFileName());
+            uploads.put(packet.field(0), Upload.REJECTED);
+            upload.transfer.finish();
+        }
+    }
+
+    private void finishUpload(Packet packet) {
+        Upload upload = uploads.remove(packet.field(0));
+        if (upload == null || upload == Upload.REJECTED) {
+            return;
+        }
+        FileTransfer transfer = upload.transfer;
+        if (!transfer.isComplete()) {
+            sendMessage(Packet.SERVER, "File " + transfer.getFileName() + " arrived incomplete.");
+        } else if (upload.recipient != null) {
+            if (upload.recipient.isBinary()) {
+                upload.recipient.sendTransferFrame(Packet.of(Packet.FILE_END, transfer.getId()));
+            } else {
+                transfer.relayText(upload.recipient);
+            }
+            server.persistMessage(username, upload.recipient.getUsername(), transfer.getFileName());
+        }
+        transfer.end();
+    }
+
+    // Release spool files of uploads the client never finished
+    public void closeUploads() {
+        for (Upload upload : uploads.values()) {
+            if (upload != Upload.REJECTED) {
+                upload.transfer.finish();
+            }
+        }
+        uploads.clear();
+    }
+
+    private static boolean isSupportedFile(String fileName) {
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+        return extension.equals("pdf") || extension.equals("jpeg") || extension.equals("jpg") || extension.equals("docx");
+    }
+
+    // An upload in progress and who it is going to, no recipient for one going to a mailbox
+    private static class Upload {
+        static final Upload REJECTED = new Upload(null, null);    // Chunks of refused uploads are skipped
+
+        final FileTransfer transfer;
+        final ClientHandler recipient;
+
+        Upload(FileTransfer transfer, ClientHandler recipient) {
+            this.transfer = transfer;
+            this.recipient = recipient;
+        }
+    }
+
+    // File transfer in one message: recipient, file name and the file's bytes
+    private void handleFile(Packet packet) {
+        if (packet.fields.length < 2 || packet.data == null) {
+            sendMessage(Packet.SERVER, "Invalid file transfer format.");
+            return;
+        }
+        String recipient = packet.fields[0];
+        String fileName = new File(packet.fields[1]).getName();     // No directories, it must stay in ServerFiles
+
+        if (!isSupportedFile(fileName)) {
+            sendMessage(Packet.SERVER, "Unsupported file type for file " + fileName);
+            return;
+        }
+
+        ClientHandler targetHandler = server.getClientHandler(recipient);
+        if (targetHandler == null && !server.isRegistered(recipient)) {
+            sendMessage(Packet.SERVER, "User " + recipient + " is not available for file transfer.");
+            return;
+        }
+
+        // Save file to "ServerFiles" directory
+        File serverDir = new File("ServerFiles");
+        if (!serverDir.exists()) {
+            serverDir.mkdir();
+        }
+
+        // Encrypted at rest, like the streamed uploads. Files for an offline user wait in the mailbox
+        File outFile = targetHandler != null ? new File(serverDir, fileName + FileTransfer.ENCRYPTED_SUFFIX) : Mailbox.newFile(fileName);
+        try (OutputStream fos = Security.encryptingStream(new FileOutputStream(outFile))) {
+            fos.write(packet.data);
+
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            sendMessage(Packet.SERVER, "Failed to save file " + fileName);
+            return;
+        }
+
+        // Forward the file to receiving user. Never dropped to make room, the recipient is disconnected instead
+        if (targetHandler != null) {
+            if (!targetHandler.sendTransferFrame(new Packet(Packet.FILE, new String[]{username, fileName}, packet.data))) {
+                sendMessage(Packet.SERVER, "User " + recipient + " could not keep up, " + fileName + " was not delivered.");
+                return;
             }
-            // Remove client
-            server.removeClient(username);
+            server.persistMessage(username, recipient, fileName);
+        } else {
+            server.persistOfflineMessage(username, recipient, fileName, outFile.getPath(), packet.data.length);
+            sendMessage(Packet.SERVER, mailboxNotice(recipient, fileName));
+        }
+    }
+
+    // Files for users not connected here go through the mailbox, their own server delivers it if they are on one
+    private String mailboxNotice(String recipient, String fileName) {
+        if (server.isConnectedElsewhere(recipient)) {
+            return "File " + fileName + " is on its way to " + recipient + ".";
         }
+        return "User " + recipient + " is offline, " + fileName + " will be delivered when they log in.";
     }
 }
@@ -0,0 +1,128 @@
+// One client connection as seen by the server, independent of how its socket is driven.
+// The server moves each connection through the handshake, waiting room and chat states
+abstract class ClientTransport {
+
+    enum State {
+        HANDSHAKE,  // waiting for "username:password"
+        WAITING,    // authenticated, queued for a connection slot
+        CONNECTED,  // owns a ClientHandler and a slot
+        CLOSED
+    }
+
+    private volatile State state = State.HANDSHAKE;
+    private volatile ClientHandler handler;
+    private volatile boolean binary = false;    // Switches to binary frames after CONNECTED
+    private volatile boolean mailAcks = false;  // Acknowledges mailbox pages itself
+    private volatile String username;           // Set once the credentials check out
+    private final long openedAt = System.currentTimeMillis();
+    private volatile long lastActivity = openedAt;  // Last time anything was read from the client
+    private volatile long checkId;                  // The server's pending timeout check, older ones are stale
+
+    public State getState() {
+        return state;
+    }
+
+    // Move from one state to another, fails if the connection has moved on (e.g. closed) meanwhile
+    public synchronized boolean transition(State from, State to) {
+        if (state != from) {
+            return false;
+        }
+        state = to;
+        return true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Agreed during the handshake, takes effect once the session starts
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean acknowledgesMail() {
+        return mailAcks;
+    }
+
+    // Agreed during the handshake
+    public void setMailAcks(boolean mailAcks) {
+        this.mailAcks = mailAcks;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public long getCheckId() {
+        return checkId;
+    }
+
+    public void setCheckId(long checkId) {
+        this.checkId = checkId;
+    }
+
+    // Something arrived from the client
+    protected void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    // Longest text line accepted in the current state. Before the session only credentials and QUIT
+    // are expected, so a peer can't make the server buffer an endless line
+    protected int maxLineLength() {
+        return state == State.CONNECTED ? Packet.MAX_TEXT_LINE : Packet.MAX_HANDSHAKE_LINE;
+    }
+
+    public ClientHandler getHandler() {
+        return handler;
+    }
+
+    // Hand the connection over to its chat session, fails if it has already closed
+    public synchronized boolean attach(ClientHandler handler) {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        this.handler = handler;
+        this.state = State.CONNECTED;
+        return true;
+    }
+
+    // Mark as closed and return the state the connection was in, or CLOSED if already closed
+    synchronized State markClosed() {
+        State previous = state;
+        state = State.CLOSED;
+        return previous;
+    }
+
+    // Write a single protocol line to the client during the handshake and waiting room. Ignored once
+    // connected, where everything goes through the session's queue (and may be binary)
+    public void sendLine(String line) {
+        if (state != State.CONNECTED) {
+            writeLine(line);
+        }
+    }
+
+    protected abstract void writeLine(String line);
+
+    // Write the last handshake line, then keep writing the chat session's outbound queue to the client
+    public abstract void startSession(String connectedLine, OutboundQueue queue);
+
+    // Close the connection once any line already sent has been written
+    public abstract void close();
+
+    // Close the connection straight away, dropping anything not yet written
+    public abstract void abort();
+
+    public abstract String getRemoteAddress();
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// This server's view of the other nodes when several run as a cluster. Each node tells the others
+// who connects to it and leaves, so every node knows where each user is, and hands them whatever
+// its own clients send to users and rooms elsewhere. Files and offline items travel through the
+// shared database and mailbox directory instead, the recipient's node is only told to deliver.
+// The links reuse the binary client framing with the packet types that mean the same thing:
+//
+//   CONNECTED node | PRESENCE users (all of the sender's) | JOINED user | LEFT user
+//   GROUP sender, text, id | PRIVATE sender, recipient, text, message | ROOM room, text | MAILBOX user
+//
+// A group message is sent on once the sending node has stored it, with its MessageHistory id (0 if it
+// couldn't be), so every node's recent messages know where their replay ends in the history.
+// A private message carries the plain message as well as the line shown, the recipient's node stores it
+//
+// Without peers this does nothing and the server runs on its own
+class Cluster implements ClusterTransport.Listener {
+    private final String nodeId;
+    private final ClusterTransport transport;   // null when there are no peers
+    private final LUConnectServer server;
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();    // Username to node
+
+    public Cluster(String nodeId, ClusterTransport transport, LUConnectServer server) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.server = server;
+    }
+
+    // A cluster as configured, "--peers=node@host:port,..." with this node's "--nodeId" and "--clusterPort"
+    static Cluster fromConfig(ServerConfig config, LUConnectServer server) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        String list = config.getPeers();
+        if (!list.isEmpty()) {
+            for (String peer : list.split(",")) {
+                String[] parts = peer.trim().split("[@:]");
+                if (parts.length != 3) {
+                    System.out.println("Ignoring invalid cluster peer: " + peer);
+                    continue;
+                }
+                try {
+                    peers.put(parts[0], new InetSocketAddress(parts[1], Integer.parseInt(parts[2])));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Ignoring invalid cluster peer: " + peer);
+                }
+            }
+        }
+        ClusterTransport transport = peers.isEmpty() ? null : new TcpMeshTransport(config.getNodeId(), config.getClusterPort(), peers);
+        return new Cluster(config.getNodeId(), transport, server);
+    }
+
+    public void start() throws IOException {
+        if (transport != null) {
+            transport.start(this);
+        }
+    }
+
+    public boolean isEnabled() {
+        return transport != null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // The node a user is connected to, null if they aren't connected elsewhere
+    public String nodeOf(String username) {
+        return remoteUsers.get(username);
+    }
+
+    public Set<String> remoteUsers() {
+        return remoteUsers.keySet();
+    }
+
+    // Users connected elsewhere, each holding one of the cluster's slots
+    public int slotsElsewhere() {
+        return remoteUsers.size();
+    }
+
+    // Outgoing, all no-ops without peers
+
+    public void joined(String username) {
+        broadcast(Packet.of(Packet.JOINED, username));
+    }
+
+    public void left(String username) {
+        broadcast(Packet.of(Packet.LEFT, username));
+    }
+
+    public void group(String sender, String text, long id) {
+        broadcast(Packet.of(Packet.GROUP, sender, text, String.valueOf(id)));
+    }
+
+    public void room(String room, String text) {
+        broadcast(Packet.of(Packet.ROOM, room, text));
+    }
+
+    // Hand a private message to the recipient's node, false if they aren't connected elsewhere
+    public boolean sendPrivate(String sender, String recipient, String text, String message) {
+        String node = remoteUsers.get(recipient);
+        if (node == null || transport == null) {
+            return false;
+        }
+        transport.send(node, Packet.of(Packet.PRIVATE, sender, recipient, text, message));
+        return true;
+    }
+
+    // Something was stored in a user's mailbox, their node delivers it if they are connected there
+    public void mailStored(String username) {
+        String node = remoteUsers.get(username);
+        if (node != null && transport != null) {
+            transport.send(node, Packet.of(Packet.MAILBOX, username));
+        }
+    }
+
+    private void broadcast(Packet packet) {
+        if (transport != null) {
+            transport.broadcast(packet);
+        }
+    }
+
+    // Incoming, on the transport's threads
+
+    @Override
+    public void onPeerUp(String node) {
+        // It may have restarted and know nothing of us, tell it everyone connected here
+        System.out.println("Cluster node " + node + " is up");
+        server.sendPresenceTo(node);
+    }
+
+    @Override
+    public void onPeerDown(String node) {
+        System.out.println("Cluster node " + node + " is down");
+        for (Map.Entry<String, String> user : new ArrayList<>(remoteUsers.entrySet())) {
+            if (user.getValue().equals(node)) {
+                remoteLeft(node, user.getKey());
+            }
+        }
+    }
+
+    // Used by the server to answer onPeerUp, under its presence lock so it is ordered with JOINED and LEFT
+    public void sendPresence(String node, String userList) {
+        if (transport != null) {
+            transport.send(node, Packet.of(Packet.PRESENCE, userList));
+        }
+    }
+
+    @Override
+    public void onMessage(String node, Packet packet) {
+        switch (packet.type) {
+            case Packet.PRESENCE:
+                replacePresence(node, packet.field(0));
+                break;
+            case Packet.JOINED:
+                remoteJoined(node, packet.field(0));
+                break;
+            case Packet.LEFT:
+                remoteLeft(node, packet.field(0));
+                break;
+            case Packet.GROUP:
+                server.deliverClusterGroup(packet.field(0), packet.field(1), parseId(packet.field(2)));
+                break;
+            case Packet.PRIVATE:
+                server.deliverClusterPrivate(packet.field(0), packet.field(1), packet.field(2), packet.field(3));
+                break;
+            case Packet.ROOM:
+                server.deliverClusterRoom(packet.field(0), packet.field(1));
+                break;
+            case Packet.MAILBOX:
+                server.deliverMail(packet.field(0));
+                break;
+            default:
+                System.out.println("Ignoring cluster message of type " + packet.type + " from " + node);
+                break;
+        }
+    }
+
+    // A stored message id, 0 if it is missing or not a number
+    private static long parseId(String id) {
+        try {
+            return id == null ? 0 : Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // A full list of a node's users, anything missing from it has left
+    private void replacePresence(String node, String userList) {
+        Set<String> users = new HashSet<>();
+        if (userList != null && !userList.isEmpty()) {
+            users.addAll(Arrays.asList(userList.split(",")));
+        }
+        List<String> gone = new ArrayList<>();
+        for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+            if (user.getValue().equals(node) && !users.contains(user.getKey())) {
+                gone.add(user.getKey());
+            }
+        }
+        for (String username : gone) {
+            remoteLeft(node, username);
+        }
+        for (String username : users) {
+            if (!node.equals(remoteUsers.get(username))) {
+                remoteJoined(node, username);
+            }
+        }
+    }
+
+    private void remoteJoined(String node, String username) {
+        if (username == null || username.isEmpty()) {
+            return;
+        }
+        // Logged in here as well: one node keeps the session, the lowest node id wins
+        if (server.isConnectedHere(username) && nodeId.compareTo(node) < 0) {
+            return;     // Ours stays, theirs is closed by their node
+        }
+        if (remoteUsers.put(username, node) == null) {
+            server.onClusterJoined(username);
+        }
+    }
+
+    private void remoteLeft(String node, String username) {
+        if (username != null && remoteUsers.remove(username, node)) {
+            server.onClusterLeft(username);
+        }
+    }
+
+    public void close() {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+// How cluster nodes reach each other. Messages are Packets, so any transport that can carry the
+// binary frame format will do; TcpMeshTransport is the reference one. Sends never block the caller,
+// a transport queues them and may drop them while a peer is unreachable. Each node's messages
+// must arrive at a peer in the order they were sent
+interface ClusterTransport {
+
+    // Called by the transport on its own threads
+    interface Listener {
+        // The peer is reachable, anything it knew about this node may be stale
+        void onPeerUp(String node);
+
+        // The peer has gone, whatever it reported no longer holds
+        void onPeerDown(String node);
+
+        void onMessage(String node, Packet packet);
+    }
+
+    void start(Listener listener) throws IOException;
+
+    // To one peer
+    void send(String node, Packet packet);
+
+    // To every peer
+    void broadcast(Packet packet);
+
+    void close();
+}
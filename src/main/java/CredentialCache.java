@@ -0,0 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Recent login results, so a burst of reconnects doesn't repeat the lookup and password decrypt
+// for every client. A verified login is kept as a digest of the password salted with a random
+// value picked at start-up, never the password itself, and only a matching password is let through.
+// A username that doesn't exist is remembered as unknown for a few seconds, so repeated logins
+// with a made up name don't each reach the database. Registering through the server forgets it,
+// the short expiry covers a user added to the database some other way
+class CredentialCache {
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final long verifiedMillis;
+    private final long unknownMillis;
+    private final byte[] salt = new byte[16];
+
+    public CredentialCache(int capacity, long verifiedMillis, long unknownMillis) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.verifiedMillis = verifiedMillis;
+        this.unknownMillis = unknownMillis;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    // True if this username and password were verified recently
+    public boolean isVerified(String username, String password) {
+        Entry entry = lookup(username);
+        return entry != null && entry.digest != null && MessageDigest.isEqual(entry.digest, digest(username, password));
+    }
+
+    // True if this username was recently found not to exist
+    public boolean isUnknown(String username) {
+        Entry entry = lookup(username);
+        return entry != null && entry.digest == null;
+    }
+
+    public void putVerified(String username, String password) {
+        if (verifiedMillis > 0) {
+            store(username, new Entry(digest(username, password), System.currentTimeMillis() + verifiedMillis));
+        }
+    }
+
+    public void putUnknown(String username) {
+        if (unknownMillis > 0) {
+            store(username, new Entry(null, System.currentTimeMillis() + unknownMillis));
+        }
+    }
+
+    // The user was registered
+    public synchronized void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    private synchronized Entry lookup(String username) {
+        Entry entry = entries.get(username);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            entries.remove(username);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void store(String username, Entry entry) {
+        entries.put(username, entry);
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            sha.update(username.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);   // So "ab"+"c" and "a"+"bc" differ
+            sha.update(password.getBytes(StandardCharsets.UTF_8));
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // Every JVM has SHA-256
+        }
+    }
+
+    private static class Entry {
+        final byte[] digest;    // null for a username that doesn't exist
+        final long expires;
+
+        Entry(byte[] digest, long expires) {
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+}
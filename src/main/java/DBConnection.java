@@ -2,11 +2,73 @@ import java.io.File;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import org.sqlite.SQLiteConfig;
+
+// Access to LUConnect.db. SQLite allows one writer at a time, so all writes share one connection
+// (and its lock), while lookups borrow one of a few read-only connections. In WAL mode the readers
+// see the last committed state and never wait for the writer
 class DBConnection {
 
-    private static DBConnection instance = null;
-    private Connection connection = null;
+    private static final int READ_CONNECTIONS = Integer.getInteger("luconnect.dbReaders", 4);
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    static final int ALL_RECIPIENTS = -999;     // recipient_id of group messages
+    static final int ROOM_RECIPIENTS = -998;    // recipient_id of room messages, the room column names the room
+
+    private static volatile DBConnection instance = null;
+
+    // Schema changes, in order. PRAGMA user_version records how many have been applied to the file
+    private static final String[][] MIGRATIONS = {
+            {
+                    "CREATE TABLE IF NOT EXISTS Users (user_id INTEGER PRIMARY KEY AUTOINCREMENT, username TEXT NOT NULL UNIQUE, password TEXT NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS MessageHistory (message_id INTEGER PRIMARY KEY AUTOINCREMENT, contents TEXT NOT NULL, "
+                            + "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, user_id INTEGER, recipient_id INTEGER, "
+                            + "FOREIGN KEY (user_id) REFERENCES User(user_id) ON DELETE CASCADE)",
+                    "ADD COLUMN MessageHistory recipient_id INTEGER",   // Older files were created without it
+                    // Users.username is UNIQUE, which already gives logins an index
+                    "CREATE INDEX IF NOT EXISTS idx_history_user_recipient ON MessageHistory (user_id, recipient_id)"
+            },
+            {
+                    // Private messages and files waiting for a recipient who was offline. The message itself is
+                    // its MessageHistory row, files are kept encrypted at file_path until delivered
+                    "CREATE TABLE IF NOT EXISTS Mailbox (mail_id INTEGER PRIMARY KEY AUTOINCREMENT, recipient_id INTEGER NOT NULL, "
+                            + "message_id INTEGER NOT NULL, file_path TEXT, file_size INTEGER, "
+                            + "FOREIGN KEY (message_id) REFERENCES MessageHistory(message_id) ON DELETE CASCADE)",
+                    "CREATE INDEX IF NOT EXISTS idx_mailbox_recipient ON Mailbox (recipient_id, mail_id)"
+            },
+            {
+                    // Group history is read back newest first, a page at a time. Pairs use idx_history_user_recipient,
+                    // which like every SQLite index ends in the rowid (message_id)
+                    "CREATE INDEX IF NOT EXISTS idx_history_recipient ON MessageHistory (recipient_id, message_id)"
+            },
+            {
+                    "ADD COLUMN MessageHistory room TEXT",
+                    "CREATE INDEX IF NOT EXISTS idx_history_room ON MessageHistory (room, message_id)"
+            }
+    };
+
+    private final Object writeLock = new Object();
+    private volatile PooledConnection connection = null;    // The writer
+    private BlockingQueue<PooledConnection> readers;
+    private final UserIdCache userIds = new UserIdCache(Integer.getInteger("luconnect.userIdCache", 10000));
+    private final CredentialCache credentials = new CredentialCache(Integer.getInteger("luconnect.credentialCache", 10000),
+            Integer.getInteger("luconnect.credentialCacheSeconds", 30) * 1000L,
+            Integer.getInteger("luconnect.unknownUserCacheSeconds", 5) * 1000L);
+
+    // Outcome of checking a login
+    enum Login {
+        ACCEPTED,
+        WRONG_PASSWORD,
+        UNKNOWN_USER,
+        UNAVAILABLE     // the database couldn't be asked, nothing is cached
+    }
 
     public static DBConnection getInstance() {
         if (instance == null) {
@@ -19,7 +81,11 @@ class DBConnection {
         return instance;
     }
 
-    public Connection establishConnection(){
+    // Open the writer and the reader pool, does nothing if they are already open
+    public synchronized Connection establishConnection(){
+        if (connection != null) {
+            return connection.connection;
+        }
 
         URL get_db = getClass().getClassLoader().getResource("LUConnect.db");
 
@@ -28,39 +94,157 @@ class DBConnection {
             if (get_db != null) {
                 db_path = new File(get_db.toURI()).getAbsolutePath();
             }
-            connection = DriverManager.getConnection("jdbc:sqlite:" + db_path);
+            String url = "jdbc:sqlite:" + db_path;
+
+            // Write-ahead log so reads don't block on writes. NORMAL sync is safe in WAL mode,
+            // a crash of the server loses nothing, a power cut at most the last commits
+            SQLiteConfig writeConfig = new SQLiteConfig();
+            writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            writeConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            writeConfig.setTempStore(SQLiteConfig.TempStore.MEMORY);
+            Connection writer = DriverManager.getConnection(url, writeConfig.toProperties());
+            migrate(writer);
+
+            SQLiteConfig readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            readConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            BlockingQueue<PooledConnection> pool = new ArrayBlockingQueue<>(Math.max(1, READ_CONNECTIONS));
+            for (int i = 0; i < Math.max(1, READ_CONNECTIONS); i++) {
+                pool.add(new PooledConnection(DriverManager.getConnection(url, readConfig.toProperties())));
+            }
+
+            readers = pool;
+            connection = new PooledConnection(writer);
+            return writer;
         } catch (SQLException | URISyntaxException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Bring the file's schema up to date, creating it if the file is new
+    private void migrate(Connection writer) throws SQLException {
+        try (Statement statement = writer.createStatement()) {
+            int version;
+            try (ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+                version = resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+
+            for (int i = version; i < MIGRATIONS.length; i++) {
+                writer.setAutoCommit(false);
+                try {
+                    for (String step : MIGRATIONS[i]) {
+                        if (step.startsWith("ADD COLUMN ")) {
+                            String[] parts = step.split(" ", 5);     // ADD COLUMN table column type
+                            if (!hasColumn(writer, parts[2], parts[3])) {
+                                statement.executeUpdate("ALTER TABLE " + parts[2] + " ADD COLUMN " + parts[3] + " " + parts[4]);
+                            }
+                        } else {
+                            statement.executeUpdate(step);
+                        }
+                    }
+                    statement.executeUpdate("PRAGMA user_version = " + (i + 1));
+                    writer.commit();
+                    System.out.println("Database schema migrated to version " + (i + 1));
+                } catch (SQLException e) {
+                    writer.rollback();
+                    throw e;
+                } finally {
+                    writer.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
+    private static boolean hasColumn(Connection db, String table, String column) throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (resultSet.next()) {
+                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // A read-only connection from the pool, null if there is none. Give it back with releaseReader
+    private PooledConnection borrowReader() {
+        BlockingQueue<PooledConnection> pool = readers;
+        if (pool == null) {
+            return null;
+        }
+        try {
+            return pool.poll(BUSY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return connection;
+    }
+
+    private void releaseReader(PooledConnection reader) {
+        readers.offer(reader);
     }
 
     // Method to authenticate user (check login info)
     public boolean authenticateUser(String username, String password) {
-        if (connection == null) {
+        return checkLogin(username, password) == Login.ACCEPTED;
+    }
+
+    // The answer for a recent login, or null if the database has to be asked
+    public Login cachedLogin(String username, String password) {
+        if (credentials.isVerified(username, password)) {
+            return Login.ACCEPTED;
+        }
+        if (credentials.isUnknown(username)) {
+            return Login.UNKNOWN_USER;
+        }
+        return null;
+    }
+
+    // Check a login, from the credential cache when possible
+    public Login checkLogin(String username, String password) {
+        Login cached = cachedLogin(username, password);
+        if (cached != null) {
+            return cached;
+        }
+
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
             System.out.println("No database connection.");
-            return false;
+            return Login.UNAVAILABLE;
         }
 
-        String query = "SELECT password FROM Users WHERE username = ?";
+        String query = "SELECT user_id, password FROM Users WHERE username = ?";
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement preparedStatement = reader.prepare(query);
             preparedStatement.setString(1, username);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 if (resultSet.next()) {
                     String encryptedPasswordFromDB = resultSet.getString("password");
                     String decryptedPassword = Security.decrypt(encryptedPasswordFromDB);
-                    return decryptedPassword.equals(password);
+                    if (password.equals(decryptedPassword)) {
+                        // Their messages will need the id, remember it now
+                        userIds.put(username, resultSet.getInt("user_id"));
+                        credentials.putVerified(username, password);
+                        return Login.ACCEPTED;
+                    }
+                    return Login.WRONG_PASSWORD;
                 }
-                return false;
+                credentials.putUnknown(username);
+                return Login.UNKNOWN_USER;
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            return false;
+            return Login.UNAVAILABLE;
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
+            return Login.UNAVAILABLE;
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -76,11 +260,14 @@ class DBConnection {
         try {
             String encryptedPassword = Security.encrypt(password);
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            synchronized (writeLock) {
+                PreparedStatement preparedStatement = connection.prepare(query);
                 preparedStatement.setString(1, username);
                 preparedStatement.setString(2, encryptedPassword);
 
                 int rowsAffected = preparedStatement.executeUpdate();
+                userIds.invalidate(username);
+                credentials.invalidate(username);   // It may have been cached as unknown
                 return rowsAffected > 0;
             }
         } catch (SQLException e) {
@@ -94,13 +281,15 @@ class DBConnection {
 
     // Check if username already exists in DB
     public boolean userExists(String username) {
-        if (connection == null) {
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
             return false;
         }
 
         String query = "SELECT * FROM Users WHERE username = ?";
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+        try {
+            PreparedStatement preparedStatement = reader.prepare(query);
             preparedStatement.setString(1, username);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
@@ -109,18 +298,43 @@ class DBConnection {
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            releaseReader(reader);
         }
     }
 
-    // Get user ID from username
+    // Get user ID from username, from the cache when possible
     public int getUserId(String username) {
-        if (connection == null) {
+        int cached = userIds.get(username);
+        if (cached != UserIdCache.MISSING) {
+            return cached;
+        }
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
             return -1;
         }
+        try {
+            return cachedUserId(reader, username);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    // Cached id, looked up on the given connection and remembered if it isn't cached yet
+    private int cachedUserId(PooledConnection db, String username) {
+        int id = userIds.get(username);
+        if (id == UserIdCache.MISSING) {
+            id = getUserId(db, username);
+            userIds.put(username, id);
+        }
+        return id;
+    }
 
+    private int getUserId(PooledConnection db, String username) {
         String get_user_id = "SELECT user_id FROM Users WHERE username = ?";
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(get_user_id)) {
+        try {
+            PreparedStatement preparedStatement = db.prepare(get_user_id);
             preparedStatement.setString(1, username);
 
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
@@ -135,6 +349,271 @@ class DBConnection {
         }
     }
 
+    // Store a batch of messages in message history in one transaction, so they share a single commit.
+    // Messages for offline recipients also get a Mailbox row. Rows whose users don't exist are skipped,
+    // returns false if the transaction failed
+    public boolean storeMessages(List<MessagePersister.PendingMessage> messages) {
+        if (connection == null) {
+            return false;
+        }
+
+        String query = "INSERT INTO MessageHistory (contents, user_id, recipient_id, room) VALUES (?, ?, ?, ?)";
+        String mailQuery = "INSERT INTO Mailbox (recipient_id, message_id, file_path, file_size) VALUES (?, last_insert_rowid(), ?, ?)";
+        String idQuery = "SELECT last_insert_rowid()";
+
+        synchronized (writeLock) {
+            try {
+                connection.connection.setAutoCommit(false);
+                try {
+                    PreparedStatement preparedStatement = connection.prepare(query);
+                    for (MessagePersister.PendingMessage message : messages) {
+                        if (message.contents == null) {
+                            continue;   // Barrier, see MessagePersister.sync
+                        }
+                        // Normally both ids are cached since login, so no lookups here
+                        int user_id = cachedUserId(connection, message.username);
+                        boolean room = message.recipient.startsWith("#");
+                        int recipient_id = message.recipient.equals("ALL") ? ALL_RECIPIENTS
+                                : room ? ROOM_RECIPIENTS : cachedUserId(connection, message.recipient);
+                        if (user_id == -1 || recipient_id == -1) {
+                            System.out.println("User not found for message from " + message.username + " to " + message.recipient);
+                            continue;
+                        }
+                        // One row at a time rather than a JDBC batch, so message ids follow the queue order and a
+                        // Mailbox row can take its message's id. Within the transaction this costs about the same
+                        preparedStatement.setString(1, message.contents);
+                        preparedStatement.setInt(2, user_id);
+                        preparedStatement.setInt(3, recipient_id);
+                        preparedStatement.setString(4, room ? message.recipient : null);
+                        preparedStatement.executeUpdate();
+
+                        if (message.onStored != null) {
+                            try (ResultSet resultSet = connection.prepare(idQuery).executeQuery()) {
+                                message.id = resultSet.next() ? resultSet.getLong(1) : 0;
+                            }
+                        }
+                        if (message.offline) {
+                            PreparedStatement mailStatement = connection.prepare(mailQuery);
+                            mailStatement.setInt(1, recipient_id);
+                            mailStatement.setString(2, message.filePath);
+                            if (message.filePath != null) {
+                                mailStatement.setLong(3, message.fileSize);
+                            } else {
+                                mailStatement.setNull(3, Types.INTEGER);
+                            }
+                            mailStatement.executeUpdate();
+                        }
+                    }
+                    connection.connection.commit();
+                    return true;
+                } catch (SQLException e) {
+                    connection.connection.rollback();
+                    throw e;
+                } finally {
+                    connection.connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // Up to limit undelivered items for a user, oldest first, starting after mail_id afterId
+    public List<Mailbox.Mail> fetchMail(String username, long afterId, int limit) {
+        List<Mailbox.Mail> mail = new ArrayList<>();
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
+            return mail;
+        }
+
+        String query = "SELECT m.mail_id, u.username, h.contents, h.timestamp, m.file_path, m.file_size FROM Mailbox m "
+                + "JOIN MessageHistory h ON h.message_id = m.message_id JOIN Users u ON u.user_id = h.user_id "
+                + "WHERE m.recipient_id = ? AND m.mail_id > ? ORDER BY m.mail_id LIMIT ?";
+
+        try {
+            int recipient_id = cachedUserId(reader, username);
+            if (recipient_id == -1) {
+                return mail;
+            }
+            PreparedStatement preparedStatement = reader.prepare(query);
+            preparedStatement.setInt(1, recipient_id);
+            preparedStatement.setLong(2, afterId);
+            preparedStatement.setInt(3, limit);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    mail.add(new Mailbox.Mail(resultSet.getLong("mail_id"), resultSet.getString("username"),
+                            resultSet.getString("contents"), resultSet.getString("timestamp"),
+                            resultSet.getString("file_path"), resultSet.getLong("file_size")));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            releaseReader(reader);
+        }
+        return mail;
+    }
+
+    // A user has received everything up to and including mail_id lastId
+    public boolean deleteMail(String username, long lastId) {
+        if (connection == null) {
+            return false;
+        }
+
+        String query = "DELETE FROM Mailbox WHERE recipient_id = ? AND mail_id <= ?";
+
+        synchronized (writeLock) {
+            try {
+                int recipient_id = cachedUserId(connection, username);
+                if (recipient_id == -1) {
+                    return false;
+                }
+                PreparedStatement preparedStatement = connection.prepare(query);
+                preparedStatement.setInt(1, recipient_id);
+                preparedStatement.setLong(2, lastId);
+                preparedStatement.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // Id of the newest message in the history, 0 if there is none
+    public long lastMessageId() {
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
+            return 0;
+        }
+
+        String query = "SELECT MAX(message_id) FROM MessageHistory";
+
+        try {
+            PreparedStatement preparedStatement = reader.prepare(query);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    // Up to limit group messages older than message_id beforeId, newest first
+    public List<History.Entry> fetchGroupHistory(long beforeId, int limit) {
+        List<History.Entry> entries = new ArrayList<>();
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
+            return entries;
+        }
+
+        String query = "SELECT h.message_id, u.username, h.contents, h.timestamp FROM MessageHistory h "
+                + "JOIN Users u ON u.user_id = h.user_id "
+                + "WHERE h.recipient_id = ? AND h.message_id < ? ORDER BY h.message_id DESC LIMIT ?";
+
+        try {
+            PreparedStatement preparedStatement = reader.prepare(query);
+            preparedStatement.setInt(1, ALL_RECIPIENTS);
+            preparedStatement.setLong(2, beforeId);
+            preparedStatement.setInt(3, limit);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(new History.Entry(resultSet.getLong("message_id"), resultSet.getString("username"),
+                            resultSet.getString("contents"), resultSet.getString("timestamp")));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            releaseReader(reader);
+        }
+        return entries;
+    }
+
+    // Up to limit messages of a room older than message_id beforeId, newest first
+    public List<History.Entry> fetchRoomHistory(String room, long beforeId, int limit) {
+        List<History.Entry> entries = new ArrayList<>();
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
+            return entries;
+        }
+
+        String query = "SELECT h.message_id, u.username, h.contents, h.timestamp FROM MessageHistory h "
+                + "JOIN Users u ON u.user_id = h.user_id "
+                + "WHERE h.room = ? AND h.message_id < ? ORDER BY h.message_id DESC LIMIT ?";
+
+        try {
+            PreparedStatement preparedStatement = reader.prepare(query);
+            preparedStatement.setString(1, room);
+            preparedStatement.setLong(2, beforeId);
+            preparedStatement.setInt(3, limit);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(new History.Entry(resultSet.getLong("message_id"), resultSet.getString("username"),
+                            resultSet.getString("contents"), resultSet.getString("timestamp")));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            releaseReader(reader);
+        }
+        return entries;
+    }
+
+    // Up to limit messages between two users older than message_id beforeId, newest first. Each direction
+    // is its own range of the (user_id, recipient_id) index, only a page of each is merged
+    public List<History.Entry> fetchPrivateHistory(String username, String other, long beforeId, int limit) {
+        List<History.Entry> entries = new ArrayList<>();
+        PooledConnection reader = borrowReader();
+        if (reader == null) {
+            return entries;
+        }
+
+        String direction = "SELECT message_id, user_id, contents, timestamp FROM MessageHistory "
+                + "WHERE user_id = ? AND recipient_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?";
+        String query = "SELECT * FROM (" + direction + ") UNION SELECT * FROM (" + direction + ") "
+                + "ORDER BY message_id DESC LIMIT ?";
+
+        try {
+            int user_id = cachedUserId(reader, username);
+            int other_id = cachedUserId(reader, other);
+            if (user_id == -1 || other_id == -1) {
+                return entries;
+            }
+            PreparedStatement preparedStatement = reader.prepare(query);
+            preparedStatement.setInt(1, user_id);
+            preparedStatement.setInt(2, other_id);
+            preparedStatement.setLong(3, beforeId);
+            preparedStatement.setInt(4, limit);
+            preparedStatement.setInt(5, other_id);
+            preparedStatement.setInt(6, user_id);
+            preparedStatement.setLong(7, beforeId);
+            preparedStatement.setInt(8, limit);
+            preparedStatement.setInt(9, limit);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    String sender = resultSet.getInt("user_id") == user_id ? username : other;
+                    entries.add(new History.Entry(resultSet.getLong("message_id"), sender,
+                            resultSet.getString("contents"), resultSet.getString("timestamp")));
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            releaseReader(reader);
+        }
+        return entries;
+    }
+
     // Store message in message history
     public boolean storeMessage(String messageContent, String username, String recipient_username) {
         if (connection == null) {
@@ -150,7 +629,7 @@ class DBConnection {
 
         // For messages with "ALL" create id -999
         if (recipient_username.equals("ALL")) {
-            recipient_id = -999;
+            recipient_id = ALL_RECIPIENTS;
         } else {
             recipient_id = getUserId(recipient_username);
             if (recipient_id == -1) {
@@ -159,18 +638,42 @@ class DBConnection {
             }
         }
 
-        String query = "INSERT INTO MessageHistory (content, user_id, recipient_id) VALUES (?, ?, ?)";
+        String query = "INSERT INTO MessageHistory (contents, user_id, recipient_id) VALUES (?, ?, ?)";
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-            preparedStatement.setString(1, messageContent);
-            preparedStatement.setInt(2, user_id);
-            preparedStatement.setInt(3, recipient_id);
+        synchronized (writeLock) {
+            try {
+                PreparedStatement preparedStatement = connection.prepare(query);
+                preparedStatement.setString(1, messageContent);
+                preparedStatement.setInt(2, user_id);
+                preparedStatement.setInt(3, recipient_id);
 
-            int rowsAffected = preparedStatement.executeUpdate();
-            return rowsAffected > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+                int rowsAffected = preparedStatement.executeUpdate();
+                return rowsAffected > 0;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // A connection plus the statements already prepared on it. Only used by one thread at a time
+    // (a borrowed reader, or the writer under its lock), so cached statements are never shared
+    private static class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // Prepared once per connection and reused, callers must not close it
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
         }
     }
 }
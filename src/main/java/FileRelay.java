@@ -0,0 +1,175 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// Sends a file that has to be read (and decrypted or encoded) on its way out as a series of ready blocks.
+// The blocks are produced on worker threads a few ahead of the socket: the next one is only read once
+// one already queued has been written, so whichever thread writes the socket (an NIO reactor serving
+// many connections) never touches the disk, and a big file never sits in memory as a whole
+class FileRelay {
+    private static final int WINDOW = 2;    // Blocks queued ahead of the socket
+
+    // Disk reads and decryption for every relay, off the socket threads
+    private static final ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "file-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Where the blocks come from, in order. Only used by one thread at a time
+    interface Source {
+        // The next block, or null once everything has been produced
+        byte[] next() throws IOException;
+
+        // Called once, when the relay is over or given up
+        void close();
+    }
+
+    private final ClientHandler recipient;
+    private final Source source;
+    private final Consumer<Boolean> onDone;     // Told once, true if every block was queued
+    private int credits = WINDOW;               // Blocks that may be read before more are written
+    private boolean running = false;            // A reader is producing blocks
+    private boolean finished = false;
+
+    private FileRelay(ClientHandler recipient, Source source, Consumer<Boolean> onDone) {
+        this.recipient = recipient;
+        this.source = source;
+        this.onDone = onDone;
+    }
+
+    // Start relaying source to recipient. onDone runs on a relay thread once the last block is queued,
+    // or with false if reading failed or the recipient went away first
+    static void start(ClientHandler recipient, Source source, Consumer<Boolean> onDone) {
+        new FileRelay(recipient, source, onDone).schedule();
+    }
+
+    // A whole file as the text protocol's "FILE:sender:name:<base64>" line. It goes out as one block:
+    // anything else queued for the client between two blocks would land in the middle of the line
+    static byte[] textLine(String sender, String fileName, long size, InputStream in) throws IOException {
+        byte[] head = ("FILE:" + sender + ":" + fileName + ":").getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream line = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, head.length + (size + 2) / 3 * 4 + 1));
+        line.write(head);
+        OutputStream base64 = Base64.getEncoder().wrap(line);
+        in.transferTo(base64);
+        base64.close();     // Writes the padding, closing a ByteArrayOutputStream does nothing
+        line.write('\n');
+        return line.toByteArray();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (running || finished || credits == 0) {
+                return;
+            }
+            running = true;
+        }
+        readers.execute(this::produce);
+    }
+
+    private void produce() {
+        while (true) {
+            synchronized (this) {
+                if (finished) {
+                    running = false;
+                    source.close();     // Given up while this was reading, closing was left to it
+                    return;
+                }
+                if (credits == 0) {
+                    running = false;
+                    return;
+                }
+                credits--;
+            }
+            byte[] block;
+            try {
+                block = source.next();
+            } catch (IOException e) {
+                e.printStackTrace();
+                finish(false, true);
+                return;
+            }
+            if (block == null) {
+                finish(true, true);
+                return;
+            }
+            if (!recipient.sendOutbound(new Block(block))) {
+                finish(false, true);
+                return;
+            }
+        }
+    }
+
+    // Called by the reader when it stops, or from a block's release when the recipient has gone.
+    // The source is closed by whoever finishes while no reader is using it, onDone is told by the first
+    private void finish(boolean complete, boolean fromReader) {
+        boolean first;
+        boolean closeNow;
+        synchronized (this) {
+            first = !finished;
+            finished = true;
+            closeNow = fromReader || !running;
+            if (fromReader) {
+                running = false;
+            }
+        }
+        if (closeNow) {
+            source.close();
+        }
+        if (first) {
+            onDone.accept(complete);
+        }
+    }
+
+    // One ready block. Once it is on its way (written, or spilled to disk in order) the next can be read
+    private class Block implements Outbound {
+        private final byte[] bytes;
+        private ByteBuffer pending;
+        private boolean handedOver = false;
+
+        Block(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (pending == null) {
+                pending = ByteBuffer.wrap(bytes);
+            }
+            channel.write(pending);
+            handedOver = !pending.hasRemaining();
+            return handedOver;
+        }
+
+        @Override
+        public byte[] toBytes() {
+            handedOver = true;
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            if (!handedOver) {
+                finish(false, false);   // The queue was closed, the recipient has gone
+                return;
+            }
+            synchronized (FileRelay.this) {
+                credits++;
+            }
+            schedule();
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One streamed upload. Chunks are spooled to a file in "ServerFiles" as they arrive, and relayed
+// to the recipient straight from that file with FileChannel.transferTo instead of through the heap.
+// The spool channel stays open until the upload is finished and every relayed chunk has been written,
+// then the file is encrypted at rest (as "<name>.enc", or a mailbox file) and the plaintext spool deleted.
+// Only an upload that ended with every byte is kept: it is encrypted under a temporary name and renamed
+// into place, so like before a later upload with the same name replaces an earlier one, but an abandoned one never does
+class FileTransfer {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final String ENCRYPTED_SUFFIX = ".enc";
+
+    // Encrypting can take a while for big files, keep it off the socket threads
+    private static final ExecutorService atRestEncryptor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-encryptor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String id;
+    private final String sender;
+    private final String fileName;
+    private final long expectedSize;
+    private final File file;
+    private final FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger(1);     // The upload itself plus one per queued relay
+    private long received = 0;
+    private volatile boolean ended = false; // FILE_END arrived with every byte, so the file is kept
+    private volatile File atRest;           // Where the encrypted copy goes
+    private volatile Runnable onStored;     // Run once it is there
+
+    public FileTransfer(String id, String sender, String fileName, long expectedSize) throws IOException {
+        this.id = id;
+        this.sender = sender;
+        this.fileName = fileName;
+        this.expectedSize = expectedSize;
+
+        // Save file to "ServerFiles" directory
+        File serverDir = new File("ServerFiles");
+        if (!serverDir.exists()) {
+            serverDir.mkdir();
+        }
+        // Spool under a name of its own, so two uploads of the same file can't share a spool
+        this.file = new File(serverDir, fileName + "." + id + ".part");
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        this.atRest = new File(serverDir, fileName + ENCRYPTED_SUFFIX);
+    }
+
+    // Store the encrypted copy at target instead, and run onStored once it is complete. Used for files
+    // waiting in a mailbox, which need a name of their own until they are delivered
+    public void storeAt(File target, Runnable onStored) {
+        this.atRest = target;
+        this.onStored = onStored;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public boolean isComplete() {
+        return received == expectedSize;
+    }
+
+    // Spool the next chunk, returns a relay for it that the recipient's queue can write
+    public Outbound append(byte[] data) throws IOException {
+        if (received + data.length > expectedSize) {
+            throw new IOException("More data than announced for " + fileName);
+        }
+        long position = received;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        received += data.length;
+        return new ChunkRelay(position, data.length);
+    }
+
+    // Send the whole file as one Base64 text line, for recipients on the text protocol.
+    // Read and encoded on a relay thread, the spool is kept until it is done
+    public void relayText(ClientHandler recipient) {
+        FileRelay.start(recipient, new Base64Source(), complete -> {
+            if (!complete) {
+                System.out.println("Relay of " + fileName + " to " + recipient.getUsername() + " did not finish");
+            }
+        });
+    }
+
+    // Upload is over (finished or abandoned), the file closes once pending relays are written
+    public void finish() {
+        release();
+    }
+
+    // Upload ended with every byte, so once the relays are written it is kept. Otherwise as finish
+    public void end() {
+        ended = isComplete();
+        release();
+    }
+
+    private void retain() {
+        references.incrementAndGet();
+    }
+
+    private void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            atRestEncryptor.execute(this::encryptAtRest);
+        }
+    }
+
+    // Replace the plaintext spool with an encrypted copy, streamed so any size fits in constant memory
+    private void encryptAtRest() {
+        if (!ended) {
+            // Abandoned or incomplete, whatever is stored under its name stays
+            if (!file.delete()) {
+                System.out.println("Could not delete incomplete upload of " + fileName);
+            }
+            return;
+        }
+        File target = atRest;
+        File encrypted = new File(target.getPath() + "." + id + ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(encrypted.toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Security.encrypt(in, out);
+            }
+            Files.move(encrypted.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            if (encrypted.exists() && !encrypted.delete()) {
+                System.out.println("Could not delete partly encrypted copy of " + fileName);
+            }
+            return;
+        }
+        if (!file.delete()) {
+            System.out.println("Could not delete plaintext copy of " + fileName);
+        }
+        Runnable stored = onStored;
+        if (stored != null) {
+            stored.run();
+        }
+    }
+
+    // FILE_CHUNK frame whose data comes from a region of the spool file
+    private class ChunkRelay implements Outbound {
+        private final ByteBuffer head;
+        private final long start;
+        private final int length;
+        private long written = 0;
+        private boolean released = false;
+
+        ChunkRelay(long start, int length) {
+            this.head = ByteBuffer.wrap(Packet.encodeHead(Packet.FILE_CHUNK, new String[]{id}, length));
+            this.start = start;
+            this.length = length;
+            retain();
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            if (head.hasRemaining()) {
+                target.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (written < length) {
+                long sent = channel.transferTo(start + written, length - written, target);
+                if (sent <= 0) {
+                    return false;   // Socket buffer full, try again when writable
+                }
+                written += sent;
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] toBytes() throws IOException {
+            byte[] headBytes = head.array();
+            ByteBuffer bytes = ByteBuffer.allocate(headBytes.length + length);
+            bytes.put(headBytes);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, start + bytes.position() - headBytes.length) < 0) {
+                    throw new IOException("Spool file shorter than expected");
+                }
+            }
+            return bytes.array();
+        }
+
+        @Override
+        public void release() {
+            if (!released) {
+                released = true;
+                FileTransfer.this.release();
+            }
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+    }
+
+    // The "FILE:sender:name:<base64>" line, encoded from the spool file
+    private class Base64Source implements FileRelay.Source {
+        private boolean finished = false;
+
+        Base64Source() {
+            retain();
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            finished = true;
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                return FileRelay.textLine(sender, fileName, received, in);
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
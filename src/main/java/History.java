@@ -0,0 +1,128 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Reads MessageHistory back for clients, one page per HISTORY request. Pages are found by keyset: the
+// client passes the id of the oldest message it has and gets the page before it, which the indexes
+// answer without counting past everything newer, however long the history is. A conversation is
+// "ALL" for the group chat, a room the client is in, or another username for the messages between the two of them.
+// Each page is read and decrypted in one go on the history threads, then streamed newest first
+class History {
+    private final DBConnection database;
+    private final MessagePersister persister;
+    private final int pageSize;
+    private final ExecutorService executor;     // Database reads and decryption, off the socket threads
+
+    // Per connected client, the first message id newer than its history: anything from then on reached it live
+    private final Map<ClientHandler, CompletableFuture<Start>> starts = new ConcurrentHashMap<>();
+
+    public History(DBConnection database, MessagePersister persister, int pageSize) {
+        this.database = database;
+        this.persister = persister;
+        this.pageSize = Math.max(1, pageSize);
+        this.executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "history");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The client is now receiving messages live. Once what was queued before that is stored, the newest
+    // stored id marks where its history ends, so its first page doesn't repeat what it was just sent.
+    // Group messages replayed to it on joining were sent too, so its group history starts before the oldest
+    // of them that was stored. Messages from other nodes reach the ring once stored there, so it isn't in id order.
+    // Private replays only hold what was said live, messages that went through the mailbox fall between
+    // them, so private history still starts at the newest id
+    public void open(ClientHandler handler, List<RecentMessages.Entry> replayedGroup) {
+        starts.put(handler, CompletableFuture.supplyAsync(() -> {
+            persister.sync();
+            long start = database.lastMessageId() + 1;
+            long group = start;
+            for (RecentMessages.Entry entry : replayedGroup) {
+                if (entry.id > 0 && entry.id < group) {
+                    group = entry.id;
+                }
+            }
+            return new Start(start, group);
+        }, executor));
+    }
+
+    public void forget(ClientHandler handler) {
+        starts.remove(handler);
+    }
+
+    // Send the page of a conversation older than message id before, or the newest page if before is empty
+    public void request(ClientHandler handler, String conversation, String before) {
+        CompletableFuture<Start> start = starts.get(handler);
+        if (start == null) {
+            return;
+        }
+        if (before == null || before.isEmpty()) {
+            start.thenAcceptAsync(ids -> sendPage(handler, conversation, "ALL".equals(conversation) ? ids.group : ids.latest), executor);
+            return;
+        }
+        try {
+            long beforeId = Long.parseLong(before);
+            executor.execute(() -> sendPage(handler, conversation, beforeId));
+        } catch (NumberFormatException e) {
+            handler.sendMessage(Packet.SERVER, "Invalid history request.");
+        }
+    }
+
+    private void sendPage(ClientHandler handler, String conversation, long beforeId) {
+        String username = handler.getUsername();
+        boolean group = "ALL".equals(conversation);
+        boolean room = conversation.startsWith("#");
+        if (room && !handler.getRooms().contains(conversation)) {
+            handler.sendMessage(Packet.SERVER, "You are not in " + conversation + ".");
+            return;
+        }
+        List<Entry> page = group ? database.fetchGroupHistory(beforeId, pageSize)
+                : room ? database.fetchRoomHistory(conversation, beforeId, pageSize)
+                : database.fetchPrivateHistory(username, conversation, beforeId, pageSize);
+
+        for (Entry entry : page) {
+            String text = Security.decrypt(entry.contents);
+            if (text == null) {
+                continue;
+            }
+            String line = "[" + Mailbox.localTime(entry.timestamp) + "] " + entry.sender + ": " + text;
+            if (!group && !room && entry.sender.equals(username)) {
+                line = "To " + conversation + ": " + line;     // As the client showed it when sending
+            }
+            handler.sendMessage(Packet.of(Packet.HISTORY, conversation, String.valueOf(entry.id), line));
+        }
+        // A short page is the start of the conversation, otherwise its oldest id is the next cursor
+        String next = page.size() < pageSize ? "" : String.valueOf(page.get(page.size() - 1).id);
+        handler.sendMessage(Packet.of(Packet.HISTORY, conversation, next));
+    }
+
+    // Where a client's history starts, the first ids it hasn't been shown
+    private static class Start {
+        final long latest;
+        final long group;
+
+        Start(long latest, long group) {
+            this.latest = latest;
+            this.group = group;
+        }
+    }
+
+    // One stored message as read from the database, contents still encrypted
+    static class Entry {
+        final long id;
+        final String sender;
+        final String contents;
+        final String timestamp;
+
+        Entry(long id, String sender, String contents, String timestamp) {
+            this.id = id;
+            this.sender = sender;
+            this.contents = contents;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -6,6 +6,9 @@ import java.io.*;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class LUConnectClient extends JFrame {
     private static final String SERVER_HOST = "localhost";
@@ -20,10 +23,24 @@ public class LUConnectClient extends JFrame {
 
     // For server connection
     private Socket socket;
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private OutputStream out;
+    private DataInputStream in;
+    private boolean binaryOffered = false;      // Server offered binary frames and we asked for them
+    private volatile boolean binary = false;    // Binary frames in use, from CONNECTED onwards
+    private final Map<String, IncomingFile> incomingFiles = new HashMap<>();   // Streamed downloads, reader thread only
+    private int nextTransferId = 0;
+    private long presenceVersion = -1;      // Version of the user list shown, -1 while waiting for a snapshot
+    private long heartbeatMillis = 0;       // Interval the server offered, 0 if it didn't. Reader thread only
+    private int heartbeatMisses = 0;
+    private volatile ScheduledExecutorService heartbeat;    // Sends our PINGs once the heartbeat is agreed
+    private String historyCursor = null;    // Group history id to ask for next, "" once it is all shown. GUI thread only
+    private boolean historyLoading = false; // A page has been asked for and hasn't ended yet
+    private int historyAnchor;              // Distance from the bottom of the group chat when the page was asked for
+    private final Set<String> joinedRooms = new LinkedHashSet<>();  // As the server named them, "#name". GUI thread only
     private String username;
     private String password;
+    private final boolean register;         // A new user, registered by the server during the handshake
+    private final Thread shutdownHook = new Thread(this::disconnect);
 
     // Components
     private JTextPane chatArea;
@@ -32,6 +49,9 @@ public class LUConnectClient extends JFrame {
     private JButton sendButton;
     private JButton openDirectoryButton;
     private JComboBox<String> recipientCombo;
+    private JComboBox<String> roomCombo;
+    private JButton joinRoomButton;
+    private JButton leaveRoomButton;
     private JLabel statusLabel;
     private JPanel waitingPanel;
     private JLabel waitTimeLabel;
@@ -53,8 +73,13 @@ public class LUConnectClient extends JFrame {
     }
 
     public LUConnectClient(String username, String password) throws URISyntaxException {
+        this(username, password, false);
+    }
+
+    public LUConnectClient(String username, String password, boolean register) throws URISyntaxException {
         this.username = username;
         this.password = password;
+        this.register = register;
 
         // Set up UI
         setTitle("LUConnect - " + username);
@@ -70,7 +95,7 @@ public class LUConnectClient extends JFrame {
         setVisible(true);
 
         // Shutdown hook
-        Runtime.getRuntime().addShutdownHook(new Thread(this::disconnect));
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     // Initialize components for waitlist and chat screen
@@ -83,6 +108,8 @@ public class LUConnectClient extends JFrame {
         chatArea.setBackground(new Color(250, 240, 240));
         chatArea.setForeground(Color.BLACK);
         chatArea.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        // History is inserted above what is shown, only explicit caret moves should scroll
+        ((DefaultCaret) chatArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
 
         privateArea = new JTextPane();
         privateArea.setEditable(false);
@@ -126,6 +153,24 @@ public class LUConnectClient extends JFrame {
         recipientCombo.setFont(new Font("Arial", Font.PLAIN, 14));
         recipientCombo.setBackground(Color.WHITE);
 
+        // Rooms: type a name (or pick a joined room) and join or leave it. Joined rooms can be picked in "Send to"
+        roomCombo = new JComboBox<>();
+        roomCombo.setEditable(true);
+        roomCombo.setFont(new Font("Arial", Font.PLAIN, 14));
+        roomCombo.setBackground(Color.WHITE);
+        roomCombo.setPrototypeDisplayValue("#general-chat");
+
+        joinRoomButton = new JButton("Join");
+        joinRoomButton.addActionListener(e -> sendRoomCommand(Packet.JOIN));
+        leaveRoomButton = new JButton("Leave");
+        leaveRoomButton.addActionListener(e -> sendRoomCommand(Packet.LEAVE));
+        for (JButton button : new JButton[]{joinRoomButton, leaveRoomButton}) {
+            button.setFont(new Font("Arial", Font.BOLD, 14));
+            button.setFocusPainted(false);
+            button.setBackground(GREY);
+            button.setForeground(Color.WHITE);
+        }
+
         usersListModel = new DefaultListModel<>();
         onlineUsersList = new JList<>(usersListModel);
         onlineUsersList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -237,6 +282,13 @@ public class LUConnectClient extends JFrame {
 
         JScrollPane groupScrollPane = new JScrollPane(chatArea);
         groupScrollPane.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        // Older messages are fetched when the group chat is scrolled to the top
+        groupScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (bar.getValue() == bar.getMinimum() && historyCursor != null) {
+                requestHistory(bar);
+            }
+        });
 
         groupChatPanel.add(groupLabel, BorderLayout.NORTH);
         groupChatPanel.add(groupScrollPane, BorderLayout.CENTER);
@@ -277,8 +329,16 @@ public class LUConnectClient extends JFrame {
         recipientLabel.setForeground(TEXT_COLOR);
         recipientLabel.setFont(new Font("Arial", Font.BOLD, 14));
 
+        JLabel roomLabel = new JLabel("Room:");
+        roomLabel.setForeground(TEXT_COLOR);
+        roomLabel.setFont(new Font("Arial", Font.BOLD, 14));
+
         recipientPanel.add(recipientLabel);
         recipientPanel.add(recipientCombo);
+        recipientPanel.add(roomLabel);
+        recipientPanel.add(roomCombo);
+        recipientPanel.add(joinRoomButton);
+        recipientPanel.add(leaveRoomButton);
 
         inputPanel.add(recipientPanel, BorderLayout.WEST);
         inputPanel.add(messageField, BorderLayout.CENTER);
@@ -322,12 +382,18 @@ public class LUConnectClient extends JFrame {
 
                 try {
 
-                    byte[] fileBytes = java.nio.file.Files.readAllBytes(selectedFile.toPath());
-                    String encodedFile = java.util.Base64.getEncoder().encodeToString(fileBytes);
-                    writer.println("FILE:" + recipient + ":" + fileName + ":" + encodedFile);
-                    String encryptedFileName = Security.encrypt(fileName);
-                    LUConnectServer.storeMessageinDB(encryptedFileName, username, recipient);
-                    JOptionPane.showMessageDialog(this, "File sent: " + fileName, "File Sent", JOptionPane.INFORMATION_MESSAGE);
+                    if (binary) {
+                        // Stream it in chunks off the event thread, chat keeps working meanwhile
+                        streamFile(selectedFile, recipient);
+                    } else {
+                        byte[] fileBytes = java.nio.file.Files.readAllBytes(selectedFile.toPath());
+                        if (sendPacket(new Packet(Packet.FILE, new String[]{recipient, fileName}, fileBytes))) {
+                            JOptionPane.showMessageDialog(this, "File sent: " + fileName, "File Sent", JOptionPane.INFORMATION_MESSAGE);
+                        } else {
+                            JOptionPane.showMessageDialog(this, "File " + fileName + " was not sent: the connection to the server was lost",
+                                    "File Sending Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
 
                 } catch (IOException ex) {
 
@@ -346,6 +412,96 @@ public class LUConnectClient extends JFrame {
     }
 
 
+    // Send a file as FILE_START, fixed size FILE_CHUNKs and FILE_END, never holding more than one chunk in memory
+    private void streamFile(File file, String recipient) {
+        String transferId = String.valueOf(++nextTransferId);
+
+        new Thread(() -> {
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath())) {
+                sendFilePacket(Packet.of(Packet.FILE_START, recipient, file.getName(), transferId, String.valueOf(channel.size())));
+
+                java.nio.ByteBuffer chunk = java.nio.ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+                while (channel.read(chunk) != -1) {
+                    if (!chunk.hasRemaining()) {
+                        sendFilePacket(new Packet(Packet.FILE_CHUNK, new String[]{transferId}, chunk.array().clone()));
+                        chunk.clear();
+                    }
+                }
+                if (chunk.position() > 0) {
+                    sendFilePacket(new Packet(Packet.FILE_CHUNK, new String[]{transferId}, Arrays.copyOf(chunk.array(), chunk.position())));
+                }
+                sendFilePacket(Packet.of(Packet.FILE_END, transferId));
+
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "File sent: " + file.getName(), "File Sent", JOptionPane.INFORMATION_MESSAGE));
+            } catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "File " + file.getName() + " was not sent: " + ex.getMessage(), "File Sending Error", JOptionPane.ERROR_MESSAGE));
+            }
+        }).start();
+    }
+
+    // A frame of a file being sent, the transfer stops if the connection has gone
+    private void sendFilePacket(Packet packet) throws IOException {
+        if (!sendPacket(packet)) {
+            throw new IOException("the connection to the server was lost");
+        }
+    }
+
+    // Write streamed file chunks to disk as they arrive, on the reader thread
+    private void receiveFileChunk(Packet packet) {
+        String transferId = packet.field(0);
+        try {
+            if (packet.type == Packet.FILE_START) {
+                // FILE_START fields: sender, file name, transfer id, size
+                transferId = packet.field(2);
+                File receivedDir = new File("RecievedFiles");
+                if (!receivedDir.exists()) {
+                    receivedDir.mkdir();
+                }
+                String fileName = new File(packet.field(1)).getName();
+                incomingFiles.put(transferId, new IncomingFile(packet.field(0), fileName,
+                        new BufferedOutputStream(new FileOutputStream(new File(receivedDir, fileName)))));
+
+            } else if (packet.type == Packet.FILE_CHUNK) {
+                IncomingFile incoming = incomingFiles.get(transferId);
+                if (incoming != null && packet.data != null) {
+                    incoming.out.write(packet.data);
+                }
+
+            } else {
+                IncomingFile incoming = incomingFiles.remove(transferId);
+                if (incoming != null) {
+                    incoming.out.close();
+                    SwingUtilities.invokeLater(() -> addFormattedMessage(privateArea, "File received from " + incoming.sender
+                            + ": " + incoming.fileName + ". Stored in directory ReceivedFiles"));
+                }
+            }
+        } catch (IOException e) {
+            IncomingFile incoming = incomingFiles.remove(transferId);
+            if (incoming != null) {
+                try {
+                    incoming.out.close();
+                } catch (IOException ignored) {
+                }
+                SwingUtilities.invokeLater(() -> addFormattedMessage(privateArea, "Error saving received file: " + incoming.fileName));
+            }
+        }
+    }
+
+    // A file being streamed to us
+    private static class IncomingFile {
+        final String sender;
+        final String fileName;
+        final OutputStream out;
+
+        IncomingFile(String sender, String fileName, OutputStream out) {
+            this.sender = sender;
+            this.fileName = fileName;
+            this.out = out;
+        }
+    }
+
     private void toggleMuteButton() {
         soundIsMuted = muteButton.isSelected();
         muteButton.setText(soundIsMuted ? "Unmute" : "Mute");
@@ -357,13 +513,26 @@ public class LUConnectClient extends JFrame {
 
             try {
                 socket = new Socket(SERVER_HOST, SERVER_PORT);
-                writer = new PrintWriter(socket.getOutputStream(), true);
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
-                String welcome = reader.readLine();
+                String welcome = Packet.readTextLine(in);
                 if ("WELCOME".equals(welcome)) {
-                    // Send username:password
-                    writer.println(username + ":" + password);
+                    // Ask for binary frames if the server offers them
+                    String protocols = Packet.readTextLine(in);
+                    java.util.List<String> offered = protocols != null && protocols.startsWith("PROTOCOLS:")
+                            ? Arrays.asList(protocols.substring(10).split(",")) : Collections.emptyList();
+                    if (offered.contains(Packet.BINARY_PROTOCOL)) {
+                        sendLine("PROTOCOL:" + Packet.BINARY_PROTOCOL);
+                        binaryOffered = true;
+                    }
+                    if (offered.contains(Packet.MAILBOX_PROTOCOL)) {
+                        // Acknowledge messages that waited for us page by page
+                        sendLine("PROTOCOL:" + Packet.MAILBOX_PROTOCOL);
+                    }
+
+                    // Send username:password, the server checks it (or registers it first) and answers ERROR if it won't
+                    sendLine((register ? "REGISTER:" : "") + username + ":" + password);
 
                     messageHandler = new Thread(this::receiveMessages);
                     messageHandler.start();
@@ -380,17 +549,61 @@ public class LUConnectClient extends JFrame {
         }).start();
     }
 
-    // Continuously read incoming messages from server
+    // Continuously read incoming messages from server, text lines until CONNECTED and binary frames after it if agreed
     private void receiveMessages() {
 
         try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                final String msg = message;
+            while (true) {
+                Packet packet;
+                if (binary) {
+                    packet = Packet.read(in);
+                    if (packet == null) {
+                        break;
+                    }
+                } else {
+                    String line = Packet.readTextLine(in);
+                    if (line == null) {
+                        break;
+                    }
+                    packet = Packet.parseText(line);
+                    if (packet == null) {
+                        continue;
+                    }
+                    if (packet.type == Packet.CONNECTED && binaryOffered) {
+                        binary = true;
+                    }
+                }
+                if (packet.type == Packet.CONNECTED && heartbeatMillis > 0) {
+                    startHeartbeat();
+                }
+                if (packet.type == Packet.FILE_START || packet.type == Packet.FILE_CHUNK || packet.type == Packet.FILE_END) {
+                    receiveFileChunk(packet);
+                    continue;
+                }
+                if (packet.type == Packet.HEARTBEAT || packet.type == Packet.PING || packet.type == Packet.PONG) {
+                    handleHeartbeat(packet);
+                    continue;
+                }
+                if (packet.type == Packet.MAILBOX) {
+                    // End of a page of messages sent while we were away, everything before it has been read
+                    sendPacket(Packet.of(Packet.MAILBOX, packet.fields.length > 0 ? packet.fields[0] : ""));
+                    continue;
+                }
+                final Packet msg = packet;
                 SwingUtilities.invokeLater(() -> processMessage(msg));
             }
 
+        } catch (SocketTimeoutException e) {
+            // Nothing from the server, not even a PING, for the agreed number of heartbeats
+            stopHeartbeat();
+            closeSocket();
+            SwingUtilities.invokeLater(() -> {
+                statusLabel.setText("Server stopped responding");
+                statusLabel.setForeground(Color.RED);
+                enableChat(false);
+            });
         } catch (IOException e) {
+            stopHeartbeat();
             if (connected) {
                 SwingUtilities.invokeLater(() -> {
                     statusLabel.setText("Disconnected from server");
@@ -401,6 +614,58 @@ public class LUConnectClient extends JFrame {
         }
     }
 
+    // Heartbeat packets are answered on the reader thread, so a busy GUI can't delay the PONG
+    private void handleHeartbeat(Packet packet) {
+        switch (packet.type) {
+            case Packet.HEARTBEAT:
+                // Offered during the handshake: interval in milliseconds and allowed misses
+                try {
+                    heartbeatMillis = Long.parseLong(packet.field(0));
+                    heartbeatMisses = Integer.parseInt(packet.field(1));
+                } catch (NumberFormatException e) {
+                    heartbeatMillis = 0;
+                }
+                break;
+            case Packet.PING:
+                sendPacket(Packet.of(Packet.PONG, packet.fields.length > 0 ? packet.fields[0] : ""));
+                break;
+            default:
+                // A PONG only needed to arrive
+                break;
+        }
+    }
+
+    // Take up the server's heartbeat offer. From now on the server hears from us every interval,
+    // and a read that gets nothing for the allowed number of intervals means the server is gone
+    private void startHeartbeat() throws IOException {
+        stopHeartbeat();    // Only one schedule however many times CONNECTED arrives
+        sendPacket(Packet.of(Packet.HEARTBEAT));
+        socket.setSoTimeout((int) (heartbeatMillis * heartbeatMisses));
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> sendPacket(Packet.of(Packet.PING, String.valueOf(System.currentTimeMillis()))),
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // Format messages to send
     private void addFormattedMessage(JTextPane pane, String message) {
 
@@ -414,6 +679,43 @@ public class LUConnectClient extends JFrame {
 
     }
 
+    // Ask for the group messages before the oldest one shown, unless a page is on its way or there are none left
+    private void requestHistory(JScrollBar bar) {
+        if (!connected || historyLoading || "".equals(historyCursor)) {
+            return;
+        }
+        historyLoading = true;
+        historyAnchor = bar.getMaximum() - bar.getValue();
+        sendPacket(Packet.of(Packet.HISTORY, "ALL", historyCursor == null ? "" : historyCursor));
+    }
+
+    // History arrives newest first, so each message goes in at the top
+    private void insertHistory(String message) {
+        try {
+            chatArea.getDocument().insertString(0, message + "\n", null);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Keep the same messages in view now that a page has gone in above them. If there is still no
+    // scrollbar to drag to the top, the next page is asked for straight away
+    private void finishHistoryPage(String next) {
+        historyCursor = next == null ? "" : next;
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar bar = groupScrollBar();
+            bar.setValue(bar.getMaximum() - historyAnchor);
+            historyLoading = false;
+            if (bar.getMaximum() - bar.getMinimum() <= bar.getVisibleAmount()) {
+                requestHistory(bar);
+            }
+        });
+    }
+
+    private JScrollBar groupScrollBar() {
+        return ((JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, chatArea)).getVerticalScrollBar();
+    }
+
     private void playNotificationSound(String resourceName) {
 
         if (!soundIsMuted) {
@@ -430,77 +732,147 @@ public class LUConnectClient extends JFrame {
     }
 
     // Process messages from server
-    private void processMessage(String message) {
-        if (message.startsWith("CONNECTED")) {
+    private void processMessage(Packet packet) {
+        switch (packet.type) {
+            case Packet.CONNECTED:
+
+                statusLabel.setText("Connected to server");
+                statusLabel.setForeground(Color.GREEN);
+                getGlassPane().setVisible(false);
+                enableChat(true);
+                connected = true;
+
+                // Get user list from users, then keep it up to date from JOINED/LEFT
+                sendPacket(Packet.of(Packet.PRESENCE));
+                requestHistory(groupScrollBar());
+                break;
+
+            case Packet.HISTORY:
+
+                if ("ALL".equals(packet.field(0))) {
+                    if (packet.fields.length > 2) {
+                        insertHistory(packet.fields[2]);
+                    } else {
+                        finishHistoryPage(packet.field(1));
+                    }
+                }
+                break;
 
-            statusLabel.setText("Connected to server");
-            statusLabel.setForeground(Color.GREEN);
-            getGlassPane().setVisible(false);
-            enableChat(true);
-            connected = true;
+            case Packet.USERS:
 
-            // Get user list from users
-            writer.println("USERS");
+                updateUserList(packet.fields.length > 0 ? packet.fields[0] : "");
+                break;
 
-        } else if (message.startsWith("USERS:")) {
+            case Packet.PRESENCE:
 
-            updateUserList(message.substring(6));
+                updateUserList(packet.fields.length > 1 ? packet.fields[1] : "");
+                presenceVersion = parseVersion(packet.field(0));
+                break;
 
-        } else if (message.startsWith("GROUP:")) {
+            case Packet.JOINED:
+            case Packet.LEFT:
 
-            playNotificationSound("incoming_message.wav");
-            addFormattedMessage(chatArea, message.substring(6));
+                applyPresenceDelta(packet);
+                break;
 
-        } else if (message.startsWith("PRIVATE:")) {
+            case Packet.GROUP:
 
-            playNotificationSound("incoming_message.wav");
-            addFormattedMessage(privateArea, message.substring(8));
+                playNotificationSound("incoming_message.wav");
+                addFormattedMessage(chatArea, packet.field(0));
+                break;
 
-        } else if (message.startsWith("SERVER:")) {
+            case Packet.ROOM:
 
-            addFormattedMessage(chatArea, "SERVER: " + message.substring(7));
+                playNotificationSound("incoming_message.wav");
+                addFormattedMessage(chatArea, packet.field(0) + " " + packet.field(1));
+                break;
 
-        } else if (message.startsWith("WAITING:")) {
+            case Packet.JOIN:
 
-            String waitTime = message.substring(8);
-            statusLabel.setText("Waiting to connect");
-            waitTimeLabel.setText("Estimated wait time: " + waitTime);
-            getGlassPane().setVisible(true);
-            enableChat(false);
+                String joined = packet.field(0);
+                if (joined != null && joinedRooms.add(joined)) {
+                    roomCombo.addItem(joined);
+                    recipientCombo.insertItemAt(joined, joinedRooms.size());    // After ALL and the other rooms
+                }
+                recipientCombo.setSelectedItem(joined);
+                addFormattedMessage(chatArea, "SERVER: You are in " + joined + " with " + packet.field(1));
+                break;
+
+            case Packet.LEAVE:
+
+                String left = packet.field(0);
+                if (joinedRooms.remove(left)) {
+                    if (left.equals(recipientCombo.getSelectedItem())) {
+                        recipientCombo.setSelectedItem("ALL");
+                    }
+                    recipientCombo.removeItem(left);
+                    roomCombo.removeItem(left);
+                    addFormattedMessage(chatArea, "SERVER: You left " + left);
+                }
+                break;
 
-        } else if (message.startsWith("FILE:")) {
+            case Packet.PRIVATE:
 
-            String[] parts = message.split(":", 4);
-            if (parts.length < 4) {
-                addFormattedMessage(chatArea, "Received invalid file message.");
-                return;
-            }
-            String sender = parts[1];
-            String fileName = parts[2];
-            String fileData = parts[3];
+                playNotificationSound("incoming_message.wav");
+                addFormattedMessage(privateArea, packet.field(0));
+                break;
 
-            try {
-                byte[] data = java.util.Base64.getDecoder().decode(fileData);
-                File receivedDir = new File("RecievedFiles");
-                if (!receivedDir.exists()) {
-                    receivedDir.mkdir();
-                }
-                File outFile = new File(receivedDir, fileName);
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    fos.write(data);
-                }
-                addFormattedMessage(privateArea, "File received from " + sender + ": " + fileName + ". Stored in directory ReceivedFiles");
+            case Packet.SERVER:
 
-            } catch (IOException e) {
-                addFormattedMessage(privateArea, "Error saving received file: " + fileName);
-            }
+                addFormattedMessage(chatArea, "SERVER: " + packet.field(0));
+                break;
+
+            case Packet.WAITING:
 
-        } else if (message.startsWith("ERROR:")) {
+                String waitTime = packet.field(0);
+                statusLabel.setText("Waiting to connect");
+                waitTimeLabel.setText("Estimated wait time: " + waitTime);
+                getGlassPane().setVisible(true);
+                enableChat(false);
+                break;
 
-            JOptionPane.showMessageDialog(this,
-                    message.substring(6), "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
+            case Packet.FILE:
+
+                if (packet.fields.length < 2 || packet.data == null) {
+                    addFormattedMessage(chatArea, "Received invalid file message.");
+                    return;
+                }
+                String sender = packet.fields[0];
+                String fileName = packet.fields[1];
+
+                try {
+                    File receivedDir = new File("RecievedFiles");
+                    if (!receivedDir.exists()) {
+                        receivedDir.mkdir();
+                    }
+                    File outFile = new File(receivedDir, fileName);
+                    try (FileOutputStream fos = new FileOutputStream(outFile)) {
+                        fos.write(packet.data);
+                    }
+                    addFormattedMessage(privateArea, "File received from " + sender + ": " + fileName + ". Stored in directory ReceivedFiles");
+
+                } catch (IOException e) {
+                    addFormattedMessage(privateArea, "Error saving received file: " + fileName);
+                }
+                break;
+
+            case Packet.ERROR:
+
+                JOptionPane.showMessageDialog(this,
+                        packet.field(0), "Error", JOptionPane.ERROR_MESSAGE);
+                if (!connected) {
+                    // Login or registration turned down, try again from the login screen
+                    closeSocket();
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                    dispose();
+                    loginScreen();
+                    break;
+                }
+                System.exit(1);
+                break;
 
+            default:
+                break;
         }
     }
 
@@ -510,6 +882,9 @@ public class LUConnectClient extends JFrame {
 
         recipientCombo.removeAllItems();
         recipientCombo.addItem("ALL");
+        for (String room : joinedRooms) {
+            recipientCombo.addItem(room);
+        }
 
         usersListModel.clear();
 
@@ -540,7 +915,47 @@ public class LUConnectClient extends JFrame {
         }
     }
 
-    // Send message to server to be processed + store in DB
+    // Apply one JOINED/LEFT to the user list without rebuilding it
+    private void applyPresenceDelta(Packet packet) {
+        long version = parseVersion(packet.field(0));
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return;     // Snapshot still on its way, or already part of it
+        }
+        if (version != presenceVersion + 1) {
+            // Missed a change, start again from a fresh snapshot
+            presenceVersion = -1;
+            sendPacket(Packet.of(Packet.PRESENCE));
+            return;
+        }
+        presenceVersion = version;
+
+        String user = packet.field(1);
+        if (user == null || user.equals(username)) {
+            return;
+        }
+        if (packet.type == Packet.JOINED) {
+            if (!usersListModel.contains(user)) {
+                recipientCombo.addItem(user);
+                usersListModel.addElement(user);
+            }
+        } else {
+            if (user.equals(recipientCombo.getSelectedItem())) {
+                recipientCombo.setSelectedItem("ALL");
+            }
+            recipientCombo.removeItem(user);
+            usersListModel.removeElement(user);
+        }
+    }
+
+    private long parseVersion(String version) {
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    // Send message to server, which stores it in the DB
     private void sendMessage() {
         if (!connected) return;
 
@@ -551,7 +966,7 @@ public class LUConnectClient extends JFrame {
         if (recipient == null) recipient = "ALL";
 
         try {
-            writer.println("MSG:" + recipient + ":" + message);
+            sendPacket(Packet.of(Packet.MSG, recipient, message));
 
             playNotificationSound("outgoing_message.wav");
 
@@ -561,11 +976,11 @@ public class LUConnectClient extends JFrame {
 
             if ("ALL".equals(recipient)) {
                 addFormattedMessage(chatArea, formattedMessage);
+            } else if (recipient.startsWith("#")) {
+                addFormattedMessage(chatArea, recipient + " " + formattedMessage);
             } else {
                 addFormattedMessage(privateArea, "To " + recipient + ": " + formattedMessage);
             }
-            String encryptedMessage = Security.encrypt(message);
-            LUConnectServer.storeMessageinDB(encryptedMessage, username, recipient);
 
             messageField.setText("");
 
@@ -579,23 +994,51 @@ public class LUConnectClient extends JFrame {
         messageField.setEnabled(enable);
         sendButton.setEnabled(enable);
         recipientCombo.setEnabled(enable);
+        roomCombo.setEnabled(enable);
+        joinRoomButton.setEnabled(enable);
+        leaveRoomButton.setEnabled(enable);
     }
 
-    // Notify server if user leaves and closes the socket connection
-    private void disconnect() {
-        if (writer != null) {
-            writer.println("QUIT");
+    // JOIN or LEAVE the room named in the room selector, the server confirms before the lists change
+    private void sendRoomCommand(byte type) {
+        Object room = roomCombo.getEditor().getItem();
+        if (connected && room != null && !room.toString().trim().isEmpty()) {
+            sendPacket(Packet.of(type, room.toString().trim()));
         }
+    }
 
+    // Write a text line, only used during the handshake
+    private void sendLine(String line) throws IOException {
+        synchronized (this) {
+            out.write((line + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    // Send a message to the server in whichever encoding was agreed, false if it couldn't be written
+    private boolean sendPacket(Packet packet) {
+        if (out == null) {
+            return false;
+        }
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            synchronized (this) {
+                out.write(binary ? packet.encode() : packet.encodeText());
+                out.flush();
             }
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
+    // Notify server if user leaves and closes the socket connection
+    private void disconnect() {
+        stopHeartbeat();
+        sendPacket(Packet.of(Packet.QUIT));
+        closeSocket();
+    }
+
     // Login screen
     private static void loginScreen() {
         JDialog loginDialog = new JDialog((Frame)null, "LUConnect Login", true);
@@ -655,15 +1098,12 @@ public class LUConnectClient extends JFrame {
                 return;
             }
 
-            if (LUConnectServer.authenticateUserinDB(username, password)) {
-                loginDialog.dispose();
-                try {
-                    new LUConnectClient(username, password);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            } else {
-                statusLabel.setText("Invalid username or password.");
+            // The server checks the password, a wrong one brings the login screen back
+            loginDialog.dispose();
+            try {
+                new LUConnectClient(username, password);
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
         });
 
@@ -740,25 +1180,22 @@ public class LUConnectClient extends JFrame {
                 return;
             }
 
-            if (!password.equals(confirmPassword)) {
-                statusLabel.setText("Passwords do not match.");
+            if (username.startsWith("#")) {
+                statusLabel.setText("Usernames can't start with #, it marks rooms.");
                 return;
             }
 
-            if (LUConnectServer.userExistsinDB(username)) {
-                statusLabel.setText("Username already exists.");
+            if (!password.equals(confirmPassword)) {
+                statusLabel.setText("Passwords do not match.");
                 return;
             }
 
-            if (LUConnectServer.registerUserinDB(username, password)) {
-                registerDialog.dispose();
-                try {
-                    new LUConnectClient(username, password);
-                } catch (URISyntaxException ex) {
-                    ex.printStackTrace();
-                }
-            } else {
-                statusLabel.setText("Registration failed. Please try again.");
+            // Registered by the server as part of logging in, a taken name brings the login screen back
+            registerDialog.dispose();
+            try {
+                new LUConnectClient(username, password, true);
+            } catch (URISyntaxException ex) {
+                ex.printStackTrace();
             }
         });
 
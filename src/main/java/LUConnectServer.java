@@ -1,112 +1,385 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.Connection;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.text.SimpleDateFormat;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class LUConnectServer {
-    private static final int PORT = 9876;
-    private static final int MAX_CLIENTS = 3;
-
     private static DBConnection dbConnection;
-
-    private final Map<String, ClientHandler> activeClients = Collections.synchronizedMap(new HashMap<>());  // Keep track of active clients
-    private final List<WaitingClient> waitingQueue = Collections.synchronizedList(new ArrayList<>());     // Keep track of clients in waitlist
-    private final SimpleSemaphore connectionSemaphore = new SimpleSemaphore(MAX_CLIENTS);   // Semaphore
-    private final Timer timer = new Timer();    // Timer to update wait times
+    private static volatile MessagePersister messagePersister;  // Write-behind for MessageHistory
+
+    private final ServerConfig config;
+    private final SessionRegistry sessions = new SessionRegistry();    // Keep track of logged in and active clients
+    private final AdmissionController<WaitingClient> admission;     // Connection slots and the waitlist
+    private final WaitTimeEstimator waitEstimator;  // Learns wait times from real sessions
+    private final Authenticator authenticator;      // Bounded login checks
+    private final Mailbox mailbox;                  // Private messages and files for offline users
+    private final History history;                  // Pages of past messages on request
+    private final RecentMessages recentMessages;    // Replayed to clients as they join
+    private final RoomIndex rooms = new RoomIndex();    // Members of each room, for room fan-out
+    private final Cluster cluster;                  // The other nodes, if this server is one of several
+    private final ReentrantLock groupOrder = new ReentrantLock();   // Numbers group messages and takes join replays, so each is either replayed or sent live
+    private long groupSeq = 0;                      // Last group message numbered, guarded by groupOrder
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wait-times");
+        thread.setDaemon(true);
+        return thread;
+    });     // Runs every wait time update, one at a time
+    private final AtomicBoolean waitUpdatePending = new AtomicBoolean(false);
+    private final TimingWheel timers = new TimingWheel(100, 512, scheduler, "connection-timers");   // Handshake deadlines and idle checks
+    private final AtomicLong checkIds = new AtomicLong();
+    private final Object presenceLock = new Object();   // Orders joins, leaves and snapshots, so versions arrive in sequence
+    private long presenceVersion = 0;   // Bumped on every join and leave
+    private ExecutorService sessionExecutor;    // Runs one SocketTransport per connection in the blocking modes
+
+    public LUConnectServer(ServerConfig config) {
+        this.config = config;
+        // A waiter whose connection closed gives its turn to the next one
+        this.admission = new AdmissionController<>(config.getMaxClients(),
+                client -> client.transport.getState() != ClientTransport.State.CLOSED);
+        this.waitEstimator = new WaitTimeEstimator(config.getMaxClients());
+        startMessagePersister(config);
+        this.authenticator = new Authenticator(dbConnection, config.getAuthThreads(), config.getAuthQueueCapacity(),
+                config.getAuthTimeoutMillis());
+        Runtime.getRuntime().addShutdownHook(new Thread(authenticator::close, "auth-shutdown"));
+        this.mailbox = new Mailbox(dbConnection, messagePersister, config.getMailboxPageSize());
+        this.history = new History(dbConnection, messagePersister, config.getHistoryPageSize());
+        this.recentMessages = new RecentMessages(config.getRecentMessages(), config.getRecentConversations());
+        this.cluster = Cluster.fromConfig(config, this);
+    }
 
     public static void main(String[] args) {
         dbConnection = DBConnection.getInstance();
         dbConnection.establishConnection();
-        new LUConnectServer().startServer();
+        new LUConnectServer(ServerConfig.fromArgs(args)).startServer();
     }
 
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Chat Server started on port " + PORT);
-
-            // Start the timer to update wait times every 10 seconds
-            timer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    updateWaitTimes();
-                }
-            }, 0, 10000);
+        // Queue changes trigger their own update, this only catches estimates that moved in between
+        scheduler.scheduleAtFixedRate(this::updateWaitTimes, 10, 10, TimeUnit.SECONDS);
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                handleNewConnection(clientSocket);
+        try {
+            cluster.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(cluster::close, "cluster-shutdown"));
+            switch (config.getMode()) {
+                case NIO:
+                    new NioServer(this, config.getPort(), config.getReactorThreads(), config.getHandshakeThreads()).start();
+                    break;
+                case VIRTUAL:
+                    startThreadedServer(newVirtualThreadExecutor());
+                    break;
+                default:
+                    startThreadedServer(Executors.newCachedThreadPool());
+                    break;
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            timer.cancel();
+            scheduler.shutdown();
+            if (sessionExecutor != null) {
+                sessionExecutor.shutdown();
+            }
+        }
+    }
+
+    // Blocking modes, each socket is served by one task on the given executor
+    private void startThreadedServer(ExecutorService executor) throws IOException {
+        sessionExecutor = executor;
+        // Blocking channels rather than plain sockets, so file relays can use zero-copy transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            System.out.println("Chat Server started on port " + config.getPort() + " (" + config.getMode().name().toLowerCase() + ")");
+
+            while (true) {
+                SocketChannel clientSocket = serverChannel.accept();
+                handleNewConnection(clientSocket);
+            }
         }
     }
 
     // Handle incoming new connection
-    private void handleNewConnection(Socket clientSocket) {
-        new Thread(() -> {
-            try {
-                // Get the username and password of chatter
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
+    private void handleNewConnection(SocketChannel clientSocket) {
+        try {
+            sessionExecutor.execute(new SocketTransport(clientSocket, this, sessionExecutor));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                writer.println("WELCOME");
-                String credentials = reader.readLine(); // username : password
-                String[] parts = credentials.split(":", 2);
+    // One virtual thread per task where the JVM has them (Java 21+), otherwise a cached platform pool
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21 or newer, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-                if (parts.length != 2) {
-                    writer.println("ERROR:Invalid credentials format");
-                    clientSocket.close();
-                    return;
-                }
+    // Greet a new connection, both engines call this first. Clients that understand binary frames
+    // answer the protocol list with "PROTOCOL:<name>" before their credentials, older ones ignore it
+    public void onConnectionOpened(ClientTransport transport) {
+        scheduleCheck(transport, config.getHandshakeTimeoutMillis());
+        transport.sendLine("WELCOME");
+        transport.sendLine("PROTOCOLS:" + Packet.BINARY_PROTOCOL + "," + Packet.MAILBOX_PROTOCOL);
+        if (config.getHeartbeatMillis() > 0) {
+            // Older clients skip lines they don't know
+            transport.sendLine("HEARTBEAT:" + config.getHeartbeatMillis() + ":" + config.getHeartbeatMisses());
+        }
+    }
 
-                String username = parts[0];
-                String password = parts[1];
+    // Replace the connection's pending check with one due after delayMillis
+    private void scheduleCheck(ClientTransport transport, long delayMillis) {
+        long id = checkIds.incrementAndGet();
+        transport.setCheckId(id);
+        timers.schedule(() -> {
+            if (transport.getCheckId() == id) {
+                checkIdle(transport);
+            }
+        }, delayMillis);
+    }
 
-                // Check if username is already active as another client
-                if (activeClients.containsKey(username)) {
-                    writer.println("ERROR:User already logged in");
-                    clientSocket.close();
+    // The client took up the heartbeat offer. Its next check moves up to the heartbeat interval
+    public void startHeartbeat(ClientHandler handler) {
+        if (config.getHeartbeatMillis() <= 0 || handler.hasHeartbeat()) {
+            return;
+        }
+        handler.setHeartbeat(true);
+        scheduleCheck(handler.getTransport(), config.getHeartbeatMillis());
+    }
+
+    // Each connection has one pending check at a time on the timing wheel. A connection still in the
+    // handshake at its deadline is closed. Later checks probe clients that have been quiet for a
+    // while: the write fails (and closes the connection) once the peer turns out to be gone, which
+    // frees a slot held by a socket that died without closing. Clients quiet for longer than the
+    // idle timeout, if one is set, are closed outright
+    private void checkIdle(ClientTransport transport) {
+        long now = System.currentTimeMillis();
+        switch (transport.getState()) {
+            case HANDSHAKE:
+                long remaining = transport.getOpenedAt() + config.getHandshakeTimeoutMillis() - now;
+                if (remaining > 0) {
+                    scheduleCheck(transport, remaining);
                     return;
                 }
-
-                // Authenticate user in database
-                if (!dbConnection.authenticateUser(username, password)) {
-                    writer.println("ERROR:Invalid username or password");
-                    clientSocket.close();
+                System.out.println("Client " + transport.getRemoteAddress() + " did not log in in time");
+                transport.sendLine("ERROR:Login timed out");
+                transport.close();
+                return;
+            case WAITING:
+            case CONNECTED:
+                long idle = now - transport.getLastActivity();
+                ClientHandler handler = transport.getHandler();
+                if (handler != null && handler.hasHeartbeat()) {
+                    checkHeartbeat(handler, idle, now);
+                    return;
+                }
+                long idleTimeout = config.getIdleTimeoutMillis();
+                if (idleTimeout > 0 && idle >= idleTimeout) {
+                    // Abort rather than close: a dead peer never drains what is queued for it, so a graceful
+                    // close would keep its slot until TCP gives up
+                    System.out.println("Client " + transport.getRemoteAddress() + " idle for " + idle / 1000 + "s, disconnecting");
+                    transport.abort();
                     return;
                 }
+                long probeInterval = config.getProbeIntervalMillis();
+                long next = probeInterval;
+                if (idle >= probeInterval) {
+                    probe(transport);
+                } else {
+                    next = probeInterval - idle;
+                }
+                if (idleTimeout > 0) {
+                    next = Math.min(next, idleTimeout - idle);
+                }
+                scheduleCheck(transport, next);
+                return;
+            default:
+                // Closed, nothing more to check
+        }
+    }
+
+    // A heartbeat client PINGs every interval, so silence for the allowed number of intervals means the
+    // peer is gone. Aborting runs removeClient at once, and the slot goes to the next waiter
+    private void checkHeartbeat(ClientHandler handler, long idle, long now) {
+        ClientTransport transport = handler.getTransport();
+        long interval = config.getHeartbeatMillis();
+        long limit = interval * config.getHeartbeatMisses();
+        if (idle >= limit) {
+            System.out.println(handler.getUsername() + " missed " + config.getHeartbeatMisses() + " heartbeats, disconnecting");
+            transport.abort();
+            return;
+        }
+        handler.sendMessage(Packet.of(Packet.PING, String.valueOf(now)));
+        scheduleCheck(transport, Math.min(interval, limit - idle));
+    }
 
-                // Create wait list UI
-                WaitingClient waitingClient = new WaitingClient(username, clientSocket, System.currentTimeMillis());
+    // Write something harmless to a quiet client: its wait estimate, or the user list
+    private void probe(ClientTransport transport) {
+        if (transport.getState() == ClientTransport.State.WAITING) {
+            WaitingClient waitingClient = admission.get(transport);
+            if (waitingClient != null && waitingClient.lastEstimate != null) {
+                transport.sendLine("WAITING:" + waitingClient.lastEstimate);
+            }
+            return;
+        }
+        ClientHandler handler = transport.getHandler();
+        if (handler == null) {
+            return;
+        }
+        if (handler.wantsPresenceDeltas()) {
+            sendPresenceSnapshot(handler);
+        } else {
+            sendUserList(handler);
+        }
+    }
 
-                // Basically, all clients put in waitlist, but if server not full, they're put through immediately
-                if (connectionSemaphore.tryAcquire()) {
-                    connectClient(waitingClient);
-                } else {
-                    // Add to waiting queue
-                    synchronized (waitingQueue) {
-                        waitingQueue.add(waitingClient);
-                        writer.println("WAITING:" + estimateWaitTime(waitingQueue.size()));
-                    }
+    // Every line read from a client ends up here, what it means depends on the connection state
+    public void onLine(ClientTransport transport, String line) {
+        switch (transport.getState()) {
+            case HANDSHAKE:
+                handleCredentials(transport, line);
+                break;
+            case WAITING:
+                // Waiting clients can only leave
+                if ("QUIT".equals(line)) {
+                    transport.close();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                break;
+            case CONNECTED:
+                Packet packet = Packet.parseText(line);
+                if (packet != null) {
+                    onPacket(transport, packet);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // A message from a connected client, decoded from either protocol
+    public void onPacket(ClientTransport transport, Packet packet) {
+        ClientHandler handler = transport.getHandler();
+        if (handler != null && !handler.handlePacket(packet)) {
+            transport.close();
+        }
+    }
+
+    // Connection is gone, free whatever it was holding
+    public void onConnectionClosed(ClientTransport transport) {
+        ClientTransport.State previous = transport.markClosed();
+        if (previous == ClientTransport.State.WAITING) {
+            if (admission.cancel(transport)) {
+                requestWaitUpdate();    // Everyone behind moved up
+            }
+            System.out.println("Client " + transport.getRemoteAddress() + " disconnected while waiting");
+        } else if (previous == ClientTransport.State.CONNECTED) {
+            transport.getHandler().closeUploads();
+            removeClient(transport.getHandler());
+        }
+        if (transport.getUsername() != null) {
+            sessions.release(transport.getUsername(), transport);
+        }
+    }
+
+    // Check the "username:password" line (or "REGISTER:username:password" for a new user) and either
+    // connect or queue the client
+    private void handleCredentials(ClientTransport transport, String credentials) {
+        if (credentials.startsWith("PROTOCOL:")) {
+            String protocol = credentials.substring(9);
+            if (Packet.BINARY_PROTOCOL.equals(protocol)) {
+                transport.setBinary(true);
+            } else if (Packet.MAILBOX_PROTOCOL.equals(protocol)) {
+                transport.setMailAcks(true);
+            } else {
+                transport.sendLine("ERROR:Unsupported protocol");
+                transport.close();
+            }
+            return;
+        }
+
+        boolean register = credentials.startsWith("REGISTER:");
+        String[] parts = (register ? credentials.substring(9) : credentials).split(":", 2);
+
+        if (parts.length != 2) {
+            transport.sendLine("ERROR:Invalid credentials format");
+            transport.close();
+            return;
+        }
+
+        String username = parts[0];
+        String password = parts[1];
+
+        if (register) {
+            String refused = username.isEmpty() || password.isEmpty() ? "Username and password are required"
+                    : username.startsWith("#") ? "Usernames can't start with #, it marks rooms" : null;
+            Authenticator.Result registration = refused == null ? authenticator.register(username, password) : Authenticator.Result.REJECTED;
+            if (registration != Authenticator.Result.ACCEPTED) {
+                transport.sendLine("ERROR:" + (refused != null ? refused
+                        : registration == Authenticator.Result.BUSY ? "Server busy, please try again" : "Username already exists"));
+                transport.close();
+                return;
+            }
+            System.out.println("Registered " + username);
+        }
+
+        // Authenticate user in database
+        Authenticator.Result login = authenticator.authenticate(username, password);
+        if (login != Authenticator.Result.ACCEPTED) {
+            transport.sendLine(login == Authenticator.Result.BUSY
+                    ? "ERROR:Server busy, please try again" : "ERROR:Invalid username or password");
+            transport.close();
+            return;
+        }
+
+        // Check if username is already logged in (or waiting) as another client, and reserve it if not
+        transport.setUsername(username);
+        if (!sessions.claim(username, transport)) {
+            transport.sendLine("ERROR:User already logged in");
+            transport.close();
+            return;
+        }
+        if (cluster.nodeOf(username) != null) {
+            // On another node. Two logins racing on different nodes are settled in onClusterJoined
+            sessions.release(username, transport);
+            transport.sendLine("ERROR:User already logged in");
+            transport.close();
+            return;
+        }
+        if (transport.getState() == ClientTransport.State.CLOSED) {
+            // Closed while authenticating, onConnectionClosed may have missed the claim
+            sessions.release(username, transport);
+            return;
+        }
+
+        // Create wait list UI
+        WaitingClient waitingClient = new WaitingClient(username, transport, System.currentTimeMillis());
+
+        // Basically, all clients put in waitlist, but if server not full, they're put through immediately
+        if (!transport.transition(ClientTransport.State.HANDSHAKE, ClientTransport.State.WAITING)) {
+            return;
+        }
+        int position = admission.admit(transport, waitingClient);
+        if (position == 0) {
+            if (!connectClient(waitingClient)) {
+                releaseSlot();
             }
-        }).start();
+        } else {
+            String estimate = estimateWaitTime(position);
+            waitingClient.lastEstimate = estimate;
+            transport.sendLine("WAITING:" + estimate);
+        }
     }
 
     // Formats messages to be sent - group and private messages
@@ -114,217 +387,528 @@ public class LUConnectServer {
         String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
         String formattedMessage = "[" + timestamp + "] " + sender + ": " + message;
 
-        if ("ALL".equals(recipient)) {
-            // Group message
-            synchronized (activeClients) {
-                for (Map.Entry<String, ClientHandler> entry : activeClients.entrySet()) {
-                    ClientHandler handler = entry.getValue();
-                    if (!handler.getUsername().equals(sender)) {
-                        handler.sendMessage("GROUP:" + formattedMessage);
-                    }
-                }
+        RecentMessages.Entry recent = null;
+        if (recipient.startsWith("#")) {
+            // Room message, only the room's members get it
+            if (!sendToRoom(sender, recipient, formattedMessage)) {
+                return;
             }
+        } else if ("ALL".equals(recipient)) {
+            // Group message, encoded once and shared by every recipient
+            Packet packet = Packet.of(Packet.GROUP, formattedMessage);
+            long seq;
+            groupOrder.lock();
+            try {
+                seq = ++groupSeq;
+                recent = recentMessages.add(sender, recipient, packet);
+            } finally {
+                groupOrder.unlock();
+            }
+            sendGroup(packet, seq, sender);
         } else {
             // Private message
-            ClientHandler recipientHandler = activeClients.get(recipient);
+            ClientHandler recipientHandler = sessions.get(recipient);
             if (recipientHandler != null) {
-                recipientHandler.sendMessage("PRIVATE:" + formattedMessage);
+                Packet packet = Packet.of(Packet.PRIVATE, formattedMessage);
+                recipientHandler.sendMessage(packet);
+                recent = recentMessages.add(sender, recipient, packet);
+            } else if (cluster.sendPrivate(sender, recipient, formattedMessage, message)) {
+                // Their node delivers and stores it, or puts it in their mailbox if they have gone
+                return;
+            } else {
+                // Offline (or gone by the time it is stored), it waits in their mailbox
+                persistOfflineMessage(sender, recipient, message, null, 0);
+                return;
             }
         }
-    }
 
-    // Show messages sent by server, e.g., "user has joined the chat"
-    public void broadcastServerMessage(String message) {
-        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-        String formattedMessage = "[" + timestamp + "]" + message;
+        // Stored once here as the server takes it in, whoever receives it. The recent copy learns its id,
+        // which tells the history where a joining client's replay ends. Other nodes get a group message
+        // with its id once it is stored, so their recent copies know it too
+        RecentMessages.Entry entry = recent;
+        LongConsumer onStored = entry != null ? entry::stored : null;
+        if ("ALL".equals(recipient)) {
+            onStored = id -> {
+                if (entry != null) {
+                    entry.stored(id);
+                }
+                cluster.group(sender, formattedMessage, id);
+            };
+        }
+        String encrypted = Security.encrypt(message);
+        if (encrypted != null) {
+            messagePersister.store(encrypted, sender, recipient, onStored);
+        } else if (onStored != null) {
+            onStored.accept(0);
+        }
+    }
 
-        synchronized (activeClients) {
-            for (ClientHandler handler : activeClients.values()) {
-                handler.sendMessage("SERVER:" + formattedMessage);
+    // Send a numbered group message to everyone who didn't get it in their join replay, but the sender.
+    // Done outside groupOrder, so two senders' messages can reach a client in either order, each sender's in order
+    private void sendGroup(Packet packet, long seq, String sender) {
+        for (ClientHandler handler : sessions.handlers()) {
+            if (seq >= handler.getGroupFrom() && !handler.getUsername().equals(sender)) {
+                handler.sendMessage(packet);
             }
         }
     }
 
-    // Sending method so GUI can display active users
-    public void sendUserList(ClientHandler requester) {
-        StringBuilder userList = new StringBuilder("USERS:");
-        synchronized (activeClients) {
-            for (String username : activeClients.keySet()) {
-                userList.append(username).append(",");
+    // Send a line to everyone in a room but the sender, false if the sender isn't in it
+    private boolean sendToRoom(String sender, String room, String formattedMessage) {
+        ClientHandler senderHandler = sessions.get(sender);
+        if (senderHandler == null || !rooms.isMember(room, senderHandler)) {
+            if (senderHandler != null) {
+                senderHandler.sendMessage(Packet.SERVER, "You are not in " + room + ".");
             }
+            return false;
         }
+        Packet packet = Packet.of(Packet.ROOM, room, formattedMessage);
+        for (ClientHandler member : rooms.members(room)) {
+            if (member != senderHandler) {
+                member.sendMessage(packet);
+            }
+        }
+        cluster.room(room, formattedMessage);
+        return true;
+    }
 
-        if (userList.length() > 6 && userList.charAt(userList.length() - 1) == ',') {
-            userList.deleteCharAt(userList.length() - 1);
+    // The client asked to join a room, it is created if nobody is in it yet
+    public void joinRoom(ClientHandler handler, String name) {
+        String room = RoomIndex.normalize(name);
+        if (room == null) {
+            handler.sendMessage(Packet.SERVER, "Room names are 1 to 32 letters, digits, '-' or '_'.");
+            return;
+        }
+        if (!handler.getRooms().contains(room) && handler.getRooms().size() >= RoomIndex.MAX_ROOMS_PER_CLIENT) {
+            handler.sendMessage(Packet.SERVER, "You can be in at most " + RoomIndex.MAX_ROOMS_PER_CLIENT + " rooms.");
+            return;
         }
+        if (rooms.join(room, handler)) {
+            announceRoom(room, handler, " has joined ");
+        }
+        handler.sendMessage(Packet.of(Packet.JOIN, room, rooms.memberList(room)));
+    }
 
-        requester.sendMessage(userList.toString());
+    public void leaveRoom(ClientHandler handler, String name) {
+        String room = RoomIndex.normalize(name);
+        if (room != null && rooms.leave(room, handler)) {
+            announceRoom(room, handler, " has left ");
+        }
+        handler.sendMessage(Packet.of(Packet.LEAVE, room != null ? room : String.valueOf(name)));
     }
 
-    // Method to update everyone's user lists if new user joins or user leaves
-    public void updateAllUserLists() {
-        synchronized (activeClients) {
-            for (ClientHandler handler : activeClients.values()) {
-                sendUserList(handler);
+    // Tell the rest of a room someone came or went
+    private void announceRoom(String room, ClientHandler handler, String change) {
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        Packet packet = Packet.of(Packet.ROOM, room, "[" + timestamp + "]" + handler.getUsername() + change + room + ".");
+        for (ClientHandler member : rooms.members(room)) {
+            if (member != handler) {
+                member.sendMessage(packet);
             }
         }
+        cluster.room(room, packet.field(1));
     }
 
-    // Remove user who left from lists
-    public void removeClient(String username) {
-        activeClients.remove(username);
-        connectionSemaphore.release();
+    // Messages from other cluster nodes, for the clients connected here
+
+    // A group message, replayed and delivered like one sent here. The sending node has stored it as id, 0 if it couldn't
+    public void deliverClusterGroup(String sender, String formattedMessage, long id) {
+        Packet packet = Packet.of(Packet.GROUP, formattedMessage);
+        long seq;
+        groupOrder.lock();
+        try {
+            seq = ++groupSeq;
+            RecentMessages.Entry recent = recentMessages.add(sender, "ALL", packet);
+            if (recent != null) {
+                recent.stored(id);
+            }
+        } finally {
+            groupOrder.unlock();
+        }
+        sendGroup(packet, seq, null);
+    }
 
-        broadcastServerMessage(username + " has left the chat.");
-        updateAllUserLists();
+    // A private message for a user thought to be here. Stored here, in their mailbox if they have just left
+    public void deliverClusterPrivate(String sender, String recipient, String formattedMessage, String message) {
+        ClientHandler recipientHandler = sessions.get(recipient);
+        if (recipientHandler == null) {
+            persistOfflineMessage(sender, recipient, message, null, 0);
+            return;
+        }
+        Packet packet = Packet.of(Packet.PRIVATE, formattedMessage);
+        recipientHandler.sendMessage(packet);
+        RecentMessages.Entry recent = recentMessages.add(sender, recipient, packet);
+        String encrypted = Security.encrypt(message);
+        if (encrypted != null) {
+            messagePersister.store(encrypted, sender, recipient, recent != null ? recent::stored : null);
+        }
+    }
 
-        // Check if anyone is waiting
-        checkWaitingQueue();
+    // A line for a room, its members here get it
+    public void deliverClusterRoom(String room, String line) {
+        Packet packet = Packet.of(Packet.ROOM, room, line);
+        for (ClientHandler member : rooms.members(room)) {
+            member.sendMessage(packet);
+        }
     }
 
-    // Simple semaphore implementation - Inner Class
-    private static class SimpleSemaphore {
-        private int permits;
-        private final Object lock = new Object();
+    // Another node stored something in the mailbox of a user connected here
+    public void deliverMail(String username) {
+        ClientHandler handler = sessions.get(username);
+        if (handler != null) {
+            mailbox.deliver(handler);
+        }
+    }
 
-        public SimpleSemaphore(int permits) {
-            this.permits = permits;
+    // A user connected to another node
+    public void onClusterJoined(String username) {
+        ClientHandler local = sessions.get(username);
+        if (local != null) {
+            // Logged in here too and the other node won, see Cluster.remoteJoined
+            local.sendMessage(Packet.ERROR, "User already logged in");
+            local.getTransport().close();
+        } else {
+            synchronized (presenceLock) {
+                sendPresenceDelta(username, true);
+            }
+            broadcastServerMessage(username + " has joined the chat.");
         }
+        updateClusterSlots();
+    }
 
-        public boolean tryAcquire() {
-            synchronized (lock) {
-                if (permits > 0) {
-                    permits--;
-                    return true;
-                }
-                return false;
+    // A user left another node, or the node itself has gone
+    public void onClusterLeft(String username) {
+        if (sessions.get(username) == null) {
+            synchronized (presenceLock) {
+                sendPresenceDelta(username, false);
             }
+            broadcastServerMessage(username + " has left the chat.");
+        }
+        updateClusterSlots();
+    }
+
+    // A node came up and needs to know who is connected here. Under the presence lock, so the list and
+    // the JOINED/LEFT that follow it reach the node in order
+    public void sendPresenceTo(String node) {
+        synchronized (presenceLock) {
+            cluster.sendPresence(node, sessions.userList());
         }
+    }
+
+    public boolean isConnectedHere(String username) {
+        return sessions.get(username) != null;
+    }
 
-        public void release() {
-            synchronized (lock) {
-                permits++;
-                lock.notify();
+    public boolean isConnectedElsewhere(String username) {
+        return cluster.nodeOf(username) != null;
+    }
+
+    // Slots in use on other nodes changed, waiters here may now fit
+    private void updateClusterSlots() {
+        admission.setElsewhere(cluster.slotsElsewhere());
+        WaitingClient next;
+        boolean granted = false;
+        while ((next = admission.grant()) != null) {
+            granted = true;
+            if (!connectClient(next)) {
+                releaseSlot();
             }
         }
+        if (granted) {
+            requestWaitUpdate();
+        }
     }
 
-    // Class to manage waiting clients - Inner Class
-    private static class WaitingClient {
-        final String username;
-        final Socket socket;
-        final long joinTime;
+    // Store a message (or a file's name) in the message history, encrypted. Only queued, the write happens in the background
+    public void persistMessage(String sender, String recipient, String contents) {
+        String encrypted = Security.encrypt(contents);
+        if (encrypted != null) {
+            messagePersister.store(encrypted, sender, recipient);
+        }
+    }
 
-        WaitingClient(String username, Socket socket, long joinTime) {
-            this.username = username;
-            this.socket = socket;
-            this.joinTime = joinTime;
+    // Store a message or file for a recipient who isn't connected, it is delivered when they are. If they
+    // connected while this was being queued their delivery may have missed it, so it is started again
+    public void persistOfflineMessage(String sender, String recipient, String contents, String filePath, long fileSize) {
+        String encrypted = Security.encrypt(contents);
+        if (encrypted == null) {
+            return;
+        }
+        // Once stored, the recipient's node delivers it if they have connected to another one meanwhile
+        messagePersister.storeOffline(encrypted, sender, recipient, filePath, fileSize, id -> {
+            if (id > 0) {
+                cluster.mailStored(recipient);
+            }
+        });
+        ClientHandler recipientHandler = sessions.get(recipient);
+        if (recipientHandler != null) {
+            mailbox.deliver(recipientHandler);
         }
     }
 
-    // Move a client from waiting list to active user
-    private void connectClient(WaitingClient waitingClient) {
+    // The client received a page of its mailbox
+    public void acknowledgeMail(ClientHandler handler, String lastId) {
         try {
-            ClientHandler handler = new ClientHandler(waitingClient.socket, waitingClient.username, this);
-            activeClients.put(waitingClient.username, handler);
+            mailbox.acknowledge(handler, Long.parseLong(lastId));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid mailbox acknowledgement from " + handler.getUsername());
+        }
+    }
+
+    // The client asked for a page of a conversation's history
+    public void sendHistory(ClientHandler handler, String conversation, String before) {
+        history.request(handler, conversation, before);
+    }
 
-            // Start the client handler thread
-            new Thread(handler).start();
+    // Whether a username belongs to a registered user, usually answered from the id cache
+    public boolean isRegistered(String username) {
+        return dbConnection.getUserId(username) != -1;
+    }
 
-            System.out.println(waitingClient.username + " connected to the chat.");
-            broadcastServerMessage(waitingClient.username + " has joined the chat.");
+    // Show messages sent by server, e.g., "user has joined the chat"
+    public void broadcastServerMessage(String message) {
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        String formattedMessage = "[" + timestamp + "]" + message;
 
-            // Send the current list of users to all clients
-            updateAllUserLists();
-        } catch (IOException e) {
-            System.err.println("Error connecting client: " + e.getMessage());
-            connectionSemaphore.release();
+        Packet packet = Packet.of(Packet.SERVER, formattedMessage);
+        for (ClientHandler handler : sessions.handlers()) {
+            handler.sendMessage(packet);
         }
     }
 
-    // Updates client about their wait time
-    private void updateWaitTimes() {
-        synchronized (waitingQueue) {
-            if (!waitingQueue.isEmpty()) {
-                System.out.println("Current waiting queue size: " + waitingQueue.size());
-
-                // Create a copy of the queue
-                List<WaitingClient> clientsCopy = new ArrayList<>(waitingQueue);
-
-                for (int i = 0; i < clientsCopy.size(); i++) {
-                    WaitingClient client = clientsCopy.get(i);
-                    try {
-                        PrintWriter writer = new PrintWriter(client.socket.getOutputStream(), true);
-                        int position = i + 1;
-                        writer.println("WAITING:" + estimateWaitTime(position));
-                    } catch (IOException e) {
-                        System.out.println("Client " + client.username + " disconnected while waiting");
-                        waitingQueue.remove(client);
-                    }
+    // Sending method so GUI can display active users
+    public void sendUserList(ClientHandler requester) {
+        requester.sendMessage(userListPacket());
+    }
+
+    private Packet userListPacket() {
+        return Packet.of(Packet.USERS, userList());
+    }
+
+    // Comma separated usernames of everyone connected, here or on another node
+    private String userList() {
+        String local = sessions.userList();
+        if (!cluster.isEnabled()) {
+            return local;
+        }
+        StringBuilder list = new StringBuilder(local);
+        for (String username : cluster.remoteUsers()) {
+            if (sessions.get(username) == null) {
+                if (list.length() > 0) {
+                    list.append(',');
                 }
+                list.append(username);
             }
         }
+        return list.toString();
     }
 
-    // Estimate a user's wait time
-    private String estimateWaitTime(int position) {
-        int waitMins = position * 2;    // Estimate: 2 mins
-        return waitMins + " minutes";
+    // Current users with the presence version they belong to. From here on the client gets deltas
+    public void sendPresenceSnapshot(ClientHandler requester) {
+        synchronized (presenceLock) {
+            requester.setPresenceDeltas(true);
+            requester.sendMessage(Packet.of(Packet.PRESENCE, String.valueOf(presenceVersion), userList()));
+        }
     }
 
-    // Check if there are any clients waiting in the queue and connect next one if possible
-    public void checkWaitingQueue() {
-        synchronized (waitingQueue) {
-            if (!waitingQueue.isEmpty()) {
-                WaitingClient nextClient = waitingQueue.remove(0);
-                connectClient(nextClient);
+    // Add or remove an active client and tell everyone, other cluster nodes included.
+    // Queuing never blocks, so it is done under the lock to keep deltas in version order
+    private void publishPresence(String username, ClientHandler joined) {
+        synchronized (presenceLock) {
+            if (joined != null) {
+                sessions.activate(username, joined);
+                cluster.joined(username);
+            } else {
+                if (!sessions.deactivate(username)) {
+                    return;
+                }
+                cluster.left(username);
+                if (cluster.nodeOf(username) != null) {
+                    return;     // Closed because they logged in on another node, so still in everyone's list
+                }
             }
+            sendPresenceDelta(username, joined != null);
         }
     }
 
-    // Method to retrieve client handler by username
-    public ClientHandler getClientHandler(String username) {
-        synchronized (activeClients) {
-            return activeClients.get(username);
+    // Clients that asked for PRESENCE get one small JOINED/LEFT delta, older clients still get the full user list.
+    // Caller holds presenceLock
+    private void sendPresenceDelta(String username, boolean joined) {
+        presenceVersion++;
+
+        Packet delta = Packet.of(joined ? Packet.JOINED : Packet.LEFT, String.valueOf(presenceVersion), username);
+        Packet userList = null;
+        for (ClientHandler handler : sessions.handlers()) {
+            if (handler.wantsPresenceDeltas()) {
+                handler.sendMessage(delta);
+            } else {
+                if (userList == null) {
+                    userList = userListPacket();
+                }
+                handler.sendMessage(userList);
+            }
         }
     }
 
-    public static boolean authenticateUserinDB(String username, String password) {
+    // Remove user who left from lists
+    public void removeClient(ClientHandler handler) {
+        String username = handler.getUsername();
+        waitEstimator.recordDeparture(System.currentTimeMillis() - handler.getConnectedAt(), System.currentTimeMillis());
+        mailbox.forget(handler);
+        history.forget(handler);
+        for (String room : handler.getRooms()) {
+            if (rooms.leave(room, handler)) {
+                announceRoom(room, handler, " has left ");
+            }
+        }
+        publishPresence(username, null);
+        if (cluster.nodeOf(username) == null) {
+            broadcastServerMessage(username + " has left the chat.");
+        }
 
-        if (dbConnection == null) {
-            dbConnection = DBConnection.getInstance();
-            dbConnection.establishConnection();
+        // Pass the slot on to whoever is waiting
+        releaseSlot();
+    }
+
+    // Give up a connection slot. It goes straight to the next waiter still connected, or is freed if there is none
+    private void releaseSlot() {
+        WaitingClient next;
+        while ((next = admission.release()) != null) {
+            if (connectClient(next)) {
+                requestWaitUpdate();    // Everyone still waiting moved up
+                return;
+            }
+            // Left just as its turn came, the slot moves on
         }
+    }
 
-        return dbConnection.authenticateUser(username, password);
+    // Class to manage waiting clients - Inner Class
+    private static class WaitingClient {
+        final String username;
+        final ClientTransport transport;
+        final long joinTime;
+        volatile String lastEstimate;   // Last WAITING value sent, so unchanged estimates aren't resent
 
+        WaitingClient(String username, ClientTransport transport, long joinTime) {
+            this.username = username;
+            this.transport = transport;
+            this.joinTime = joinTime;
+        }
     }
 
-    public static boolean registerUserinDB(String username, String password){
-        if (dbConnection == null) {
-            dbConnection = DBConnection.getInstance();
-            dbConnection.establishConnection();
-            System.out.println("Got instance");
+    // Move a client that owns a slot from waiting list to active user, false if it has already gone
+    private boolean connectClient(WaitingClient waitingClient) {
+        OutboundQueue outbound = new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy());
+        ClientHandler handler = new ClientHandler(waitingClient.transport, waitingClient.username, this, outbound);
+
+        // From now on the connection's lines go to its handler
+        if (!waitingClient.transport.attach(handler)) {
+            return false;
         }
-        return dbConnection.registerUser(username, password);
+        waitingClient.transport.startSession("CONNECTED", outbound);
+
+        // Show their recent private conversations, then add to the active users and tell everyone.
+        // Group messages numbered before the group replay is taken are in it, later ones are sent live after it
+        for (List<RecentMessages.Entry> conversation : recentMessages.privateReplayFor(waitingClient.username).values()) {
+            replay(handler, conversation);
+        }
+        publishPresence(waitingClient.username, handler);
+        List<RecentMessages.Entry> group;
+        groupOrder.lock();
+        try {
+            group = recentMessages.groupReplay();
+            replay(handler, group);     // Only queued, so cheap enough to do under the lock
+            handler.setGroupFrom(groupSeq + 1);
+        } finally {
+            groupOrder.unlock();
+        }
+        history.open(handler, group);
+
+        System.out.println(waitingClient.username + " connected to the chat.");
+        broadcastServerMessage(waitingClient.username + " has joined the chat.");
+
+        // Anything sent while they were away, read and paged in the background
+        mailbox.deliver(handler);
+        return true;
     }
 
-    public static boolean userExistsinDB(String username) {
+    // Resend recent messages to a client that has just joined, its own private ones as it showed them when sending
+    private void replay(ClientHandler handler, List<RecentMessages.Entry> conversation) {
+        for (RecentMessages.Entry entry : conversation) {
+            if (entry.packet.type == Packet.PRIVATE && entry.sender.equals(handler.getUsername())) {
+                handler.sendMessage(Packet.PRIVATE, "To " + entry.recipient + ": " + entry.packet.field(0));
+            } else {
+                handler.sendMessage(entry.packet);
+            }
+        }
+    }
 
-        if (dbConnection == null) {
-            dbConnection = DBConnection.getInstance();
-            dbConnection.establishConnection();
+    // Run a wait time update soon, several queue changes in a row share one
+    private void requestWaitUpdate() {
+        if (waitUpdatePending.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                waitUpdatePending.set(false);
+                updateWaitTimes();
+            });
         }
+    }
 
-        return dbConnection.userExists(username);
+    // Updates client about their wait time, only where it changed. Runs on the scheduler thread
+    private void updateWaitTimes() {
+        // Copy of the queue, written to the sockets after letting go of it
+        List<WaitingClient> clientsCopy = admission.waiting();
+        if (clientsCopy.isEmpty()) {
+            return;
+        }
+
+        int sent = 0;
+        for (int i = 0; i < clientsCopy.size(); i++) {
+            WaitingClient client = clientsCopy.get(i);
+            String estimate = estimateWaitTime(i + 1);
+            if (!estimate.equals(client.lastEstimate)) {
+                client.lastEstimate = estimate;
+                client.transport.sendLine("WAITING:" + estimate);
+                sent++;
+            }
+        }
+        if (sent > 0) {
+            System.out.println("Current waiting queue size: " + clientsCopy.size() + ", " + sent + " wait times updated");
+        }
     }
 
-    public static void storeMessageinDB(String encryptedFileName, String username, String recipient){
+    // Estimate a user's wait time from the measured session turnover
+    private String estimateWaitTime(int position) {
+        int waitMins = waitEstimator.estimateMinutes(position);
+        return waitMins == 1 ? "1 minute" : waitMins + " minutes";
+    }
 
+    // Method to retrieve client handler by username
+    public ClientHandler getClientHandler(String username) {
+        return sessions.get(username);
+    }
+
+    // Start the message history writer, anything it still holds is committed when the JVM exits
+    private static synchronized void startMessagePersister(ServerConfig config) {
+        if (messagePersister != null) {
+            return;
+        }
         if (dbConnection == null) {
             dbConnection = DBConnection.getInstance();
+            dbConnection.establishConnection();
         }
-
-        dbConnection.storeMessage(encryptedFileName, username, recipient);
+        MessagePersister.Durability durability = config.getDurability();
+        long fullQueueWait = MessagePersister.FULL_QUEUE_WAIT_MILLIS;
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            // Messages are routed on the reactor threads, waiting for commits or queue space there would stall every connection
+            if (durability == MessagePersister.Durability.SYNC) {
+                System.out.println("sync durability is not available in nio mode, using async");
+                durability = MessagePersister.Durability.ASYNC;
+            }
+            fullQueueWait = 0;
+        }
+        MessagePersister persister = new MessagePersister(dbConnection, durability, config.getPersistQueueCapacity(),
+                config.getPersistBatchSize(), config.getPersistFlushMillis(), fullQueueWait);
+        Runtime.getRuntime().addShutdownHook(new Thread(persister::close, "message-writer-shutdown"));
+        messagePersister = persister;
     }
 }
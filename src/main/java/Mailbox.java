@@ -0,0 +1,320 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Store-and-forward for private messages and files sent to someone who is offline. They are kept in
+// the Mailbox table (files encrypted in "ServerFiles/Mailbox") and handed over once the recipient
+// connects, one page at a time: the next page is only read once the last one is acknowledged, so a
+// long backlog never floods the recipient's queue. Clients that send MAILBOX acknowledge each page
+// themselves, for older clients a page counts as delivered once it has been written to the socket.
+// A page that was never acknowledged is delivered again at the next login
+class Mailbox {
+    static final File DIRECTORY = new File("ServerFiles", "Mailbox");
+
+    private final DBConnection database;
+    private final MessagePersister persister;
+    private final int pageSize;
+    private final ExecutorService executor;     // Database work for deliveries, off the socket threads
+    private final Map<ClientHandler, Delivery> deliveries = new ConcurrentHashMap<>();
+
+    public Mailbox(DBConnection database, MessagePersister persister, int pageSize) {
+        this.database = database;
+        this.persister = persister;
+        this.pageSize = Math.max(1, pageSize);
+        this.executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "mailbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // A file name in the mailbox directory that nothing else uses
+    static File newFile(String fileName) {
+        if (!DIRECTORY.exists()) {
+            DIRECTORY.mkdirs();
+        }
+        return new File(DIRECTORY, UUID.randomUUID() + "-" + fileName + FileTransfer.ENCRYPTED_SUFFIX);
+    }
+
+    // Start handing over whatever is waiting for this client. Called when it connects and whenever
+    // something is queued for it, a delivery already running picks the new items up
+    public void deliver(ClientHandler handler) {
+        Delivery delivery = deliveries.computeIfAbsent(handler, Delivery::new);
+        synchronized (delivery) {
+            if (delivery.running) {
+                delivery.again = true;
+                return;
+            }
+            delivery.running = true;
+        }
+        executor.execute(() -> nextPage(delivery));
+    }
+
+    // The client has everything up to and including lastId
+    public void acknowledge(ClientHandler handler, long lastId) {
+        Delivery delivery = deliveries.get(handler);
+        if (delivery == null) {
+            return;
+        }
+        List<File> files;
+        synchronized (delivery) {
+            if (delivery.pageEnd != lastId) {
+                return;     // Not the page in flight
+            }
+            delivery.pageEnd = -1;
+            files = delivery.pageFiles;
+        }
+        executor.execute(() -> {
+            database.deleteMail(handler.getUsername(), lastId);
+            for (File file : files) {
+                if (!file.delete()) {
+                    System.out.println("Could not delete delivered file " + file.getName());
+                }
+            }
+            delivery.cursor = lastId;
+            nextPage(delivery);
+        });
+    }
+
+    // The client has gone, anything not acknowledged stays for next time
+    public void forget(ClientHandler handler) {
+        Delivery delivery = deliveries.remove(handler);
+        if (delivery != null) {
+            delivery.closed = true;
+        }
+    }
+
+    private void nextPage(Delivery delivery) {
+        // Items queued just before this client connected may still be on their way to the database
+        persister.sync();
+        if (delivery.closed) {
+            return;
+        }
+        ClientHandler handler = delivery.handler;
+        List<Mail> page = database.fetchMail(handler.getUsername(), delivery.cursor, pageSize);
+        if (page.isEmpty()) {
+            synchronized (delivery) {
+                if (!delivery.again) {
+                    delivery.running = false;
+                    return;
+                }
+                delivery.again = false;
+            }
+            executor.execute(() -> nextPage(delivery));
+            return;
+        }
+
+        sendFrom(delivery, page, 0);
+    }
+
+    // Hand over the page from index on. A stored file is read and decrypted on relay threads, the rest
+    // of the page (and its end) is only queued once the file's last block is
+    private void sendFrom(Delivery delivery, List<Mail> page, int index) {
+        ClientHandler handler = delivery.handler;
+        for (int i = index; i < page.size(); i++) {
+            if (delivery.closed) {
+                return;
+            }
+            Mail mail = page.get(i);
+            FileRelay.Source file = send(handler, mail);
+            if (file != null) {
+                int next = i + 1;
+                FileRelay.start(handler, file, complete -> {
+                    if (!complete && !delivery.closed) {
+                        System.out.println("Could not relay mail " + mail.id + " to " + handler.getUsername());
+                    }
+                    executor.execute(() -> sendFrom(delivery, page, next));
+                });
+                return;
+            }
+        }
+
+        List<File> files = new ArrayList<>();
+        for (Mail mail : page) {
+            if (mail.filePath != null) {
+                files.add(new File(mail.filePath));
+            }
+        }
+        long lastId = page.get(page.size() - 1).id;
+        synchronized (delivery) {
+            delivery.pageEnd = lastId;
+            delivery.pageFiles = files;
+        }
+        if (handler.acknowledgesMail()) {
+            handler.sendMessage(Packet.of(Packet.MAILBOX, String.valueOf(lastId)));
+        } else {
+            handler.sendOutbound(new PageEnd(delivery, lastId));
+        }
+    }
+
+    // Queue a message, or return the stored file to relay
+    private FileRelay.Source send(ClientHandler handler, Mail mail) {
+        String text = Security.decrypt(mail.contents);
+        if (text == null) {
+            System.out.println("Could not read mail " + mail.id + " for " + handler.getUsername());
+            return null;
+        }
+        if (mail.filePath == null) {
+            handler.sendMessage(Packet.PRIVATE, "[" + localTime(mail.timestamp) + "] " + mail.sender + ": " + text);
+            return null;
+        }
+        File file = new File(mail.filePath);
+        if (!file.exists()) {
+            handler.sendMessage(Packet.SERVER, "File " + text + " from " + mail.sender + " could not be delivered.");
+            return null;
+        }
+        return new StoredFile(file, mail.sender, text, mail.fileSize, ClientHandler.newTransferId(), handler.isBinary());
+    }
+
+    // MessageHistory timestamps are UTC, shown in local time with the date since they may be old
+    static String localTime(String timestamp) {
+        try {
+            SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return new SimpleDateFormat("dd/MM HH:mm:ss").format(utc.parse(timestamp));
+        } catch (ParseException | NullPointerException e) {
+            return String.valueOf(timestamp);
+        }
+    }
+
+    // One waiting item as read from the database, contents still encrypted
+    static class Mail {
+        final long id;
+        final String sender;
+        final String contents;      // The message, or the file's name
+        final String timestamp;
+        final String filePath;      // null for messages
+        final long fileSize;
+
+        Mail(long id, String sender, String contents, String timestamp, String filePath, long fileSize) {
+            this.id = id;
+            this.sender = sender;
+            this.contents = contents;
+            this.timestamp = timestamp;
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+        }
+    }
+
+    // Delivery state of one connected client
+    private static class Delivery {
+        final ClientHandler handler;
+        volatile long cursor = 0;       // Highest mail_id acknowledged
+        long pageEnd = -1;              // Last mail_id of the page waiting for its acknowledgement
+        List<File> pageFiles;
+        boolean running = false;
+        boolean again = false;          // Something was queued while running
+        volatile boolean closed = false;
+
+        Delivery(ClientHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    // Queued after a page for clients that don't acknowledge. Reaching the socket acknowledges the page,
+    // being dropped or spilled instead leaves it for the next login
+    private class PageEnd implements Outbound {
+        private final Delivery delivery;
+        private final long lastId;
+        private boolean written = false;
+
+        PageEnd(Delivery delivery, long lastId) {
+            this.delivery = delivery;
+            this.lastId = lastId;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) {
+            written = true;
+            return true;
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return new byte[0];
+        }
+
+        @Override
+        public void release() {
+            if (written) {
+                acknowledge(delivery.handler, lastId);
+            } else {
+                synchronized (delivery) {
+                    delivery.running = false;
+                }
+            }
+        }
+    }
+
+    // A stored file sent as FILE_START, FILE_CHUNKs and FILE_END, decrypted a chunk at a time,
+    // or as one FILE line for text clients
+    private static class StoredFile implements FileRelay.Source {
+        private final File file;
+        private final String sender;
+        private final String fileName;
+        private final long size;
+        private final String relayId;
+        private final boolean binary;
+        private InputStream in;
+        private boolean finished = false;
+
+        StoredFile(File file, String sender, String fileName, long size, String relayId, boolean binary) {
+            this.file = file;
+            this.sender = sender;
+            this.fileName = fileName;
+            this.size = size;
+            this.relayId = relayId;
+            this.binary = binary;
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            if (in == null) {
+                try {
+                    in = Security.decryptingStream(new BufferedInputStream(new FileInputStream(file)));
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Cannot decrypt " + file.getName(), e);
+                }
+                if (!binary) {
+                    finished = true;
+                    return FileRelay.textLine(sender, fileName, size, in);
+                }
+                return Packet.of(Packet.FILE_START, sender, fileName, relayId, String.valueOf(size)).encode();
+            }
+            byte[] block = in.readNBytes(FileTransfer.CHUNK_SIZE);
+            if (block.length > 0) {
+                return new Packet(Packet.FILE_CHUNK, new String[]{relayId}, block).encode();
+            }
+            finished = true;
+            return Packet.of(Packet.FILE_END, relayId).encode();
+        }
+
+        @Override
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Write-behind stage for MessageHistory. Senders only queue the message, one writer thread
+// inserts whatever has queued up in a single transaction, so many messages share one commit
+// (and one fsync) instead of paying for their own
+class MessagePersister {
+
+    enum Durability {
+        ASYNC,  // return at once, the message is committed within a flush interval
+        SYNC    // wait until the batch holding the message has committed
+    }
+
+    // Longest a sender may be held back by a full queue, and the barrier in sync() always is
+    static final long FULL_QUEUE_WAIT_MILLIS = 1000;
+
+    private final DBConnection database;
+    private final Durability durability;
+    private final long fullQueueWaitMillis;     // 0 when senders must never wait, e.g. on reactor threads
+    private final int batchSize;
+    private final long flushMillis;
+    private final BlockingQueue<PendingMessage> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private volatile long maxCommitNanos = 0;
+
+    public MessagePersister(DBConnection database, Durability durability, int capacity, int batchSize, long flushMillis,
+                            long fullQueueWaitMillis) {
+        this.database = database;
+        this.durability = durability;
+        this.fullQueueWaitMillis = Math.max(0, fullQueueWaitMillis);
+        this.batchSize = Math.max(1, batchSize);
+        this.flushMillis = Math.max(1, flushMillis);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.writer = new Thread(this::run, "message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Queue a message for MessageHistory. Under SYNC this waits for the commit, returns false if it wasn't stored
+    public boolean store(String contents, String username, String recipient) {
+        return store(contents, username, recipient, null);
+    }
+
+    // As store, onStored is given the message's id once it has been committed, or 0 if it wasn't stored
+    public boolean store(String contents, String username, String recipient, LongConsumer onStored) {
+        PendingMessage message = new PendingMessage(contents, username, recipient, false, null, 0, durability == Durability.SYNC);
+        message.onStored = onStored;
+        return store(message);
+    }
+
+    // As store, and also put it in the recipient's Mailbox. filePath is the stored file for a file, else null
+    public boolean storeOffline(String contents, String username, String recipient, String filePath, long fileSize) {
+        return storeOffline(contents, username, recipient, filePath, fileSize, null);
+    }
+
+    public boolean storeOffline(String contents, String username, String recipient, String filePath, long fileSize,
+                                LongConsumer onStored) {
+        PendingMessage message = new PendingMessage(contents, username, recipient, true, filePath, fileSize, durability == Durability.SYNC);
+        message.onStored = onStored;
+        return store(message);
+    }
+
+    // Wait until everything queued so far has been committed, whatever the durability
+    public void sync() {
+        store(new PendingMessage(null, null, null, false, null, 0, true), FULL_QUEUE_WAIT_MILLIS);
+    }
+
+    private boolean store(PendingMessage message) {
+        return store(message, fullQueueWaitMillis);
+    }
+
+    private boolean store(PendingMessage message, long waitMillis) {
+        if (closed) {
+            notStored(message);
+            return false;
+        }
+        try {
+            // A full queue means the disk can't keep up, hold the sender back for a moment before giving up.
+            // Senders that can't wait give up straight away, and the count is reported now and then
+            boolean queued = waitMillis > 0 ? queue.offer(message, waitMillis, TimeUnit.MILLISECONDS) : queue.offer(message);
+            if (!queued) {
+                long count = rejected.incrementAndGet();
+                if (waitMillis > 0 || count % 1000 == 1) {
+                    System.out.println("Message history queue full, message from " + message.username + " not stored ("
+                            + count + " so far)");
+                }
+                notStored(message);
+                return false;
+            }
+            if (message.committed != null) {
+                message.committed.await();
+                return message.success;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Tell the caller a message never reached the queue, the writer tells it about the rest
+    private static void notStored(PendingMessage message) {
+        if (message.onStored != null) {
+            message.onStored.accept(0);
+        }
+    }
+
+    // Stop taking messages and commit everything still queued. Called on shutdown
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Message history closed: " + getMetrics());
+    }
+
+    private void run() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                // Wait for the first message, then give the batch up to flushMillis to fill. Under SYNC the
+                // senders are waiting, so commit whatever has queued; more pile up during the commit anyway
+                PendingMessage first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long linger = durability == Durability.ASYNC ? flushMillis : 0;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Woken by close(), commit what there is and drain the rest
+            }
+            queue.drainTo(batch, batchSize - batch.size());
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        long start = System.nanoTime();
+        boolean success = database.storeMessages(batch);
+        long elapsed = System.nanoTime() - start;
+
+        commits.incrementAndGet();
+        commitNanos.addAndGet(elapsed);
+        if (elapsed > maxCommitNanos) {
+            maxCommitNanos = elapsed;
+        }
+        int messages = 0;
+        for (PendingMessage message : batch) {
+            if (message.contents != null) {
+                messages++;
+            }
+        }
+        (success ? stored : failed).addAndGet(messages);
+
+        for (PendingMessage message : batch) {
+            if (message.onStored != null) {
+                message.onStored.accept(success ? message.id : 0);
+            }
+            if (message.committed != null) {
+                message.success = success;
+                message.committed.countDown();
+            }
+        }
+    }
+
+    // Messages waiting to be written
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    public double getAverageCommitMillis() {
+        long count = commits.get();
+        return count == 0 ? 0 : commitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxCommitMillis() {
+        return maxCommitNanos / 1e6;
+    }
+
+    public String getMetrics() {
+        return String.format("stored=%d failed=%d rejected=%d queued=%d commits=%d avgCommit=%.2fms maxCommit=%.2fms",
+                stored.get(), failed.get(), rejected.get(), getQueueDepth(), commits.get(), getAverageCommitMillis(), getMaxCommitMillis());
+    }
+
+    // One row for MessageHistory, plus one for Mailbox if the recipient was offline. No contents marks a barrier
+    static class PendingMessage {
+        final String contents;
+        final String username;
+        final String recipient;
+        final boolean offline;
+        final String filePath;
+        final long fileSize;
+        final CountDownLatch committed;     // Only for SYNC durability and barriers
+        volatile boolean success;
+        LongConsumer onStored;              // Set before queueing, if the caller wants the id
+        long id;                            // message_id, set by the writer
+
+        PendingMessage(String contents, String username, String recipient, boolean offline, String filePath, long fileSize,
+                       boolean waitForCommit) {
+            this.contents = contents;
+            this.username = username;
+            this.recipient = recipient;
+            this.offline = offline;
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.committed = waitForCommit ? new CountDownLatch(1) : null;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Selector based engine. The accept loop hands each channel to one of a few reactor threads,
+// and every connection is then driven as a non-blocking state machine on its reactor
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final LUConnectServer server;
+    private final int port;
+    private final Reactor[] reactors;
+    private final ExecutorService handshakePool;    // Authentication and file packets touch the database and disk, keep them off the reactors
+    private int nextReactor = 0;
+
+    public NioServer(LUConnectServer server, int port, int reactorThreads, int handshakeThreads) {
+        this.server = server;
+        this.port = port;
+        this.reactors = new Reactor[reactorThreads];
+        this.handshakePool = Executors.newFixedThreadPool(handshakeThreads);
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            reactors[i].thread = thread;
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Chat Server started on port " + port + " (NIO, " + reactors.length + " reactors)");
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(true);
+                reactors[nextReactor].register(channel);
+                nextReactor = (nextReactor + 1) % reactors.length;
+            }
+        } finally {
+            handshakePool.shutdown();
+        }
+    }
+
+    // One selector and the thread that owns it
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioSession session = new NioSession(this, channel);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    server.onConnectionOpened(session);
+                } catch (ClosedChannelException e) {
+                    System.out.println("Channel closed before registration");
+                }
+            });
+        }
+
+        // Run a task on this reactor's thread
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    // One bad connection must not take the reactor down
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Per connection state, only touched on its reactor thread apart from sendLine and close
+    private class NioSession extends ClientTransport {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final InboundDecoder decoder = new InboundDecoder();
+        private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();  // Lines sent before the session starts
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private volatile OutboundQueue sessionQueue;
+        private Outbound current;       // Partly written item
+        private SelectionKey key;
+        private boolean workerRunning = false;     // Input being handled on the handshake pool, reading waits for it
+        private volatile boolean closeRequested = false;
+        private boolean closed = false;
+
+        NioSession(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+        }
+
+        @Override
+        protected void writeLine(String line) {
+            if (closeRequested) {
+                return;
+            }
+            outbound.add(new Outbound.Bytes((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            scheduleFlush();
+        }
+
+        @Override
+        public void startSession(String connectedLine, OutboundQueue queue) {
+            writeLine(connectedLine);
+            sessionQueue = queue;
+            queue.setListener(this::scheduleFlush);
+            scheduleFlush();
+        }
+
+        @Override
+        public void close() {
+            closeRequested = true;
+            scheduleFlush();
+        }
+
+        @Override
+        public void abort() {
+            closeRequested = true;
+            reactor.execute(this::closeNow);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(this::flush);
+            }
+        }
+
+        // Write as much as the socket takes, and wait for OP_WRITE if it is full
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    Outbound item;
+                    while ((item = nextItem()) != null) {
+                        current = item;
+                        if (!item.writeTo(channel)) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        current = null;
+                        item.release();
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    flushScheduled.set(false);
+
+                    // A sender may have queued between the last poll and the reset above
+                    if (!hasPending() || !flushScheduled.compareAndSet(false, true)) {
+                        break;
+                    }
+                }
+                if (closeRequested && !hasPending()) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        // Handshake lines go out first, then the session's queue
+        private Outbound nextItem() throws IOException {
+            if (current != null) {
+                return current;
+            }
+            Outbound item = outbound.poll();
+            if (item == null && sessionQueue != null) {
+                item = sessionQueue.poll();
+            }
+            return item;
+        }
+
+        private boolean hasPending() {
+            return current != null || !outbound.isEmpty() || (sessionQueue != null && !sessionQueue.isEmpty());
+        }
+
+        void onReadable() {
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if (read == -1) {
+                closeNow();
+                return;
+            }
+            touch();
+            readBuffer.flip();
+            decoder.feed(readBuffer);
+            readBuffer.clear();
+            processInput();
+        }
+
+        private void processInput() {
+            try {
+                while (!closeRequested && !workerRunning) {
+                    // Binary frames only start after CONNECTED, everything before is text lines
+                    if (isBinary() && getState() == State.CONNECTED) {
+                        Packet packet = decoder.nextPacket();
+                        if (packet == null) {
+                            return;
+                        }
+                        if (isFilePacket(packet.type)) {
+                            runOffReactor(() -> server.onPacket(this, packet));
+                        } else {
+                            server.onPacket(this, packet);
+                        }
+                    } else {
+                        String line = decoder.nextLine(maxLineLength());
+                        if (line == null) {
+                            return;
+                        }
+                        processLine(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Connection " + getRemoteAddress() + " sent a bad frame: " + e.getMessage());
+                closeNow();
+            }
+        }
+
+        private void processLine(String line) {
+            if (getState() == State.HANDSHAKE || line.startsWith("FILE:")) {
+                runOffReactor(() -> server.onLine(this, line));
+            } else {
+                server.onLine(this, line);
+            }
+        }
+
+        // File packets look the recipient up in the database and write to disk
+        private boolean isFilePacket(byte type) {
+            return type == Packet.FILE || type == Packet.FILE_START || type == Packet.FILE_CHUNK || type == Packet.FILE_END;
+        }
+
+        // Handle input that may block on the handshake pool. Reading stops until it is done, so
+        // the connection's input is still handled one piece at a time and in order
+        private void runOffReactor(Runnable work) {
+            workerRunning = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            handshakePool.execute(() -> {
+                try {
+                    work.run();
+                } finally {
+                    reactor.execute(this::resumeReading);
+                }
+            });
+        }
+
+        private void resumeReading() {
+            workerRunning = false;
+            if (closed) {
+                server.onConnectionClosed(this);    // Held back by closeNow until the work was done
+                return;
+            }
+            if (!key.isValid()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            processInput();
+        }
+
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeRequested = true;
+            if (sessionQueue != null) {
+                sessionQueue.close();
+            }
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Tear the session down after any input still being handled, which may be using it
+            if (!workerRunning) {
+                server.onConnectionClosed(this);
+            }
+        }
+    }
+
+    // Splits incoming bytes into UTF-8 lines or binary frames without going through a Reader
+    static class InboundDecoder {
+        private byte[] buffer = new byte[256];
+        private int start = 0;
+        private int end = 0;
+        private int scanned = 0;
+
+        void feed(ByteBuffer data) {
+            int length = data.remaining();
+            if (end + length > buffer.length) {
+                // Drop consumed bytes first, then grow if still needed
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scanned -= start;
+                start = 0;
+                if (end + length > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end + length));
+                }
+            }
+            data.get(buffer, end, length);
+            end += length;
+        }
+
+        // Next complete line without its line terminator, or null if none buffered yet.
+        // Fails on a line longer than maxLength, whether or not its line end has arrived
+        String nextLine(int maxLength) throws IOException {
+            for (int i = Math.max(scanned, start); i < end; i++) {
+                if (buffer[i] == '\n') {
+                    int lineEnd = (i > start && buffer[i - 1] == '\r') ? i - 1 : i;
+                    if (lineEnd - start > maxLength) {
+                        throw new IOException("Line longer than " + maxLength + " bytes");
+                    }
+                    String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    scanned = start;
+                    return line;
+                }
+            }
+            scanned = end;
+            if (end - start > maxLength + 1) {     // One over, for a trailing \r
+                throw new IOException("Line longer than " + maxLength + " bytes");
+            }
+            return null;
+        }
+
+        // Next complete binary frame, or null if none buffered yet
+        Packet nextPacket() throws IOException {
+            ByteBuffer view = ByteBuffer.wrap(buffer, start, end - start);
+            Packet packet = Packet.decode(view);
+            if (packet != null) {
+                start = view.position();
+                scanned = start;
+            }
+            return packet;
+        }
+    }
+}
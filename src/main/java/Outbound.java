@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Something queued for one client: usually an encoded frame, or a file chunk written
+// straight from the server's spool file
+interface Outbound {
+
+    // Write as much as the channel takes, true once everything has been written
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    // The whole item as bytes, for when it has to be spilled to disk
+    byte[] toBytes() throws IOException;
+
+    // Called exactly once, after the item is written or discarded
+    default void release() {
+    }
+
+    // False for the parts of a file transfer: dropping one under DROP_OLDEST would hand the
+    // recipient a corrupt file, so the queue gives way elsewhere
+    default boolean isDroppable() {
+        return true;
+    }
+
+    // An encoded frame or line. The bytes are never modified, so one array can be queued for many clients
+    final class Bytes implements Outbound {
+        private final byte[] bytes;
+        private final boolean droppable;
+        private ByteBuffer pending;
+
+        Bytes(byte[] bytes) {
+            this(bytes, true);
+        }
+
+        Bytes(byte[] bytes, boolean droppable) {
+            this.bytes = bytes;
+            this.droppable = droppable;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (pending == null) {
+                pending = ByteBuffer.wrap(bytes);
+            }
+            channel.write(pending);
+            return !pending.hasRemaining();
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return bytes;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return droppable;
+        }
+    }
+}
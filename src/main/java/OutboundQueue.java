@@ -0,0 +1,429 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of items waiting to be written to one client. Senders never block,
+// when the queue is full the overflow policy decides what gives way
+class OutboundQueue {
+
+    // Times capacity undroppable items may fill the queue to under DROP_OLDEST. File chunks only point into
+    // the spool file so going over is cheap, but a client this far behind is disconnected
+    private static final int UNDROPPABLE_LIMIT = 4;
+
+    // Writes spilled frames to disk, so senders never wait for the disk or hold the lock while it is used
+    private static final ExecutorService spillWriter = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "outbound-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    enum OverflowPolicy {
+        DROP_OLDEST,    // discard the oldest queued frame that may be dropped to make room
+        DISCONNECT,     // refuse the frame, the caller drops the client
+        SPILL           // keep everything, overflow goes to a temporary file on disk
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile Runnable listener;     // Told when a frame arrives, used by the NIO engine
+    private long dropped = 0;
+    private boolean closed = false;
+
+    // Spill state, only used with OverflowPolicy.SPILL. Frames go out in the order: queue, disk, pendingSpill.
+    // The disk is only touched outside the lock: the spill writer appends, the reader (the one draining) reads
+    private final ArrayDeque<Outbound> pendingSpill = new ArrayDeque<>();   // Overflow not yet on disk
+    private int writing = 0;            // Frames the spill writer has taken from pendingSpill and not yet flushed
+    private boolean spillScheduled = false;
+    private boolean reading = false;    // The reader is reading a frame back
+    private boolean spillFailed = false;
+    private SpillFile spillFile;
+    private int spilled = 0;    // Frames on disk not read back yet
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // Queue an item, returns false if the policy says the client should be disconnected
+    public boolean offer(Outbound item) {
+        boolean startSpill = false;
+        lock.lock();
+        try {
+            if (closed) {
+                item.release();
+                return true;
+            }
+            if (spillFailed) {
+                item.release();
+                return false;
+            }
+            if (isSpilling()) {
+                // Once spilling, everything goes to disk so frames stay in order
+                startSpill = spill(item);
+            } else if (queue.size() < capacity) {
+                queue.addLast(item);
+            } else {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        if (!dropOldest(item)) {
+                            return false;
+                        }
+                        break;
+                    case SPILL:
+                        startSpill = spill(item);
+                        break;
+                    default:
+                        item.release();
+                        dropped++;
+                        return false;
+                }
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (startSpill) {
+            spillWriter.execute(this::writeSpill);
+        }
+        notifyListener();
+        return true;
+    }
+
+    // Next item, or null if there is none right now. Throws if spilled frames can't be read back,
+    // the client must then be disconnected since they are lost
+    public Outbound poll() throws IOException {
+        SpillFile file;
+        lock.lock();
+        try {
+            Outbound item = nextInMemory();
+            if (item != null || !startReading()) {
+                return item;
+            }
+            file = spillFailed ? null : spillFile;
+        } finally {
+            lock.unlock();
+        }
+        return readSpilled(file);
+    }
+
+    // Next item, waiting for one. Returns null once the queue is closed, throws like poll
+    public Outbound take() throws IOException, InterruptedException {
+        SpillFile file;
+        lock.lock();
+        try {
+            Outbound item;
+            while ((item = nextInMemory()) == null && !startReading()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            if (item != null) {
+                return item;
+            }
+            file = spillFailed ? null : spillFile;
+        } finally {
+            lock.unlock();
+        }
+        return readSpilled(file);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Frames waiting to be written, including any spilled to disk
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size() + spilled + writing + pendingSpill.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frames lost to DROP_OLDEST or refused under DISCONNECT
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        SpillFile unused;
+        lock.lock();
+        try {
+            closed = true;
+            for (Outbound item : queue) {
+                item.release();
+            }
+            queue.clear();
+            for (Outbound item : pendingSpill) {
+                item.release();
+            }
+            pendingSpill.clear();
+            // A reader or writer still using the file deletes it when done
+            unused = reading || writing > 0 ? null : detachSpill();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (unused != null) {
+            unused.delete();
+        }
+    }
+
+    // Make room by dropping the oldest droppable frame. With only file chunks queued, a droppable item is
+    // dropped itself and an undroppable one queued over capacity. False once that is too far over
+    private boolean dropOldest(Outbound item) {
+        Iterator<Outbound> it = queue.iterator();
+        while (it.hasNext()) {
+            Outbound oldest = it.next();
+            if (oldest.isDroppable()) {
+                it.remove();
+                oldest.release();
+                queue.addLast(item);
+                dropped++;
+                return true;
+            }
+        }
+        if (item.isDroppable()) {
+            item.release();
+            dropped++;
+            return true;
+        }
+        if (queue.size() >= capacity * UNDROPPABLE_LIMIT) {
+            item.release();
+            return false;
+        }
+        queue.addLast(item);
+        return true;
+    }
+
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    private boolean isSpilling() {
+        return spilled > 0 || writing > 0 || !pendingSpill.isEmpty();
+    }
+
+    // Next item held in memory, under the lock. Overflow not written yet can be handed
+    // over directly when nothing on disk is ahead of it
+    private Outbound nextInMemory() {
+        Outbound item = queue.pollFirst();
+        if (item == null && spilled == 0 && writing == 0) {
+            item = pendingSpill.pollFirst();
+        }
+        return item;
+    }
+
+    // Under the lock, true if the next item has to be read from disk, which the caller then does outside it
+    private boolean startReading() {
+        if (closed || (spilled == 0 && !spillFailed)) {
+            return false;
+        }
+        reading = true;
+        return true;
+    }
+
+    // Read the next spilled frame back from file, without holding the lock. No file if writing it failed
+    private Outbound readSpilled(SpillFile file) throws IOException {
+        byte[] frame = null;
+        IOException failure = null;
+        try {
+            if (file == null) {
+                throw new IOException("Spilled frames could not be written");
+            }
+            if (file.in == null) {
+                file.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.file)));
+            }
+            frame = new byte[file.in.readInt()];
+            file.in.readFully(frame);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        SpillFile done = null;
+        lock.lock();
+        try {
+            reading = false;
+            if (failure != null) {
+                // Never carry on without them, the client would silently miss messages
+                System.out.println("Spilled messages could not be read back, disconnecting: " + failure.getMessage());
+                spillFailed = true;
+                throw failure;
+            }
+            spilled--;
+            if (writing == 0 && (closed || spilled == 0)) {
+                // Caught up with the disk (or closed), back to memory only
+                done = detachSpill();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (done != null) {
+            done.delete();
+        }
+        return new Outbound.Bytes(frame);
+    }
+
+    // Under the lock, queue overflow for the spill writer. True if the writer has to be started
+    private boolean spill(Outbound item) {
+        pendingSpill.addLast(item);
+        if (spillScheduled) {
+            return false;
+        }
+        spillScheduled = true;
+        return true;
+    }
+
+    // Spill writer task: append pending overflow to the file until none is left
+    private void writeSpill() {
+        while (true) {
+            List<Outbound> batch;
+            SpillFile target;
+            SpillFile unused = null;
+            lock.lock();
+            try {
+                if (closed || spillFailed || pendingSpill.isEmpty()) {
+                    for (Outbound item : pendingSpill) {
+                        item.release();
+                    }
+                    pendingSpill.clear();
+                    spillScheduled = false;
+                    if (closed && !reading) {
+                        unused = detachSpill();
+                    }
+                    notEmpty.signalAll();
+                    batch = null;
+                    target = null;
+                } else {
+                    batch = new ArrayList<>(pendingSpill);
+                    pendingSpill.clear();
+                    writing = batch.size();
+                    target = spillFile;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (batch == null) {
+                if (unused != null) {
+                    unused.delete();
+                }
+                notifyListener();
+                return;
+            }
+
+            boolean written = false;
+            try {
+                if (target == null) {
+                    target = SpillFile.create();
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    byte[] frame;
+                    try {
+                        frame = batch.get(i).toBytes();
+                    } finally {
+                        batch.set(i, null).release();
+                    }
+                    target.out.writeInt(frame.length);
+                    target.out.write(frame);
+                }
+                target.out.flush();     // Visible to the reader from here
+                written = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (Outbound item : batch) {
+                    if (item != null) {
+                        item.release();
+                    }
+                }
+            }
+
+            lock.lock();
+            try {
+                if (target != null) {
+                    spillFile = target;
+                }
+                if (written) {
+                    spilled += writing;
+                } else {
+                    spillFailed = true;     // The reader reports it, which disconnects the client
+                }
+                writing = 0;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            notifyListener();
+        }
+    }
+
+    // Under the lock, take the spill file away so it can be deleted outside it
+    private SpillFile detachSpill() {
+        SpillFile detached = spillFile;
+        spillFile = null;
+        spilled = 0;
+        return detached;
+    }
+
+    // The temporary file overflow goes to, written by the spill writer and read by the queue's reader
+    private static class SpillFile {
+        final File file;
+        final DataOutputStream out;
+        DataInputStream in;
+
+        private SpillFile(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        static SpillFile create() throws IOException {
+            File file = File.createTempFile("luconnect-spill-", ".bin");
+            file.deleteOnExit();
+            return new SpillFile(file);
+        }
+
+        void delete() {
+            try {
+                out.close();
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
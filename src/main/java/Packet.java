@@ -0,0 +1,314 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// One protocol message. It travels as a text line ("TYPE:field:field") for the original
+// line based clients, or as a length-prefixed binary frame once "BIN1" is negotiated:
+//
+//   byte type | int payload length | byte field count | (int length, UTF-8 bytes) per field | int data length (-1 = none), data bytes
+//
+// Binary frames can carry newlines in text and raw file bytes without Base64
+final class Packet {
+    static final String BINARY_PROTOCOL = "BIN1";
+    static final String MAILBOX_PROTOCOL = "MAILBOX";   // The client acknowledges mailbox pages, see MAILBOX
+    static final int HEADER_SIZE = 5;
+    static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    static final int MAX_TEXT_LINE = MAX_PAYLOAD / 3 * 4 + 4096;   // A legacy FILE line carries its payload in Base64
+    static final int MAX_HANDSHAKE_LINE = 1024;
+
+    // Packet types, shared by both directions
+    static final byte MSG = 1;          // recipient, text
+    static final byte USERS = 2;        // request has no fields, reply has the comma separated list
+    static final byte FILE = 3;         // recipient (or sender when relayed), file name + file bytes
+    static final byte QUIT = 4;
+    static final byte CONNECTED = 5;
+    static final byte GROUP = 6;        // text
+    static final byte PRIVATE = 7;      // text
+    static final byte SERVER = 8;       // text
+    static final byte ERROR = 9;        // text
+    static final byte WAITING = 10;     // estimate
+
+    // Streamed file transfer, binary clients only
+    static final byte FILE_START = 11;  // recipient (or sender when relayed), file name, transfer id, size in bytes
+    static final byte FILE_CHUNK = 12;  // transfer id + the next chunk of bytes
+    static final byte FILE_END = 13;    // transfer id
+
+    // Presence: a snapshot on request, then one delta per join or leave. Versions increase by one
+    // per change, so a client that sees a gap asks for a new snapshot
+    static final byte PRESENCE = 14;    // request has no fields, reply has version + comma separated list
+    static final byte JOINED = 15;      // version, username
+    static final byte LEFT = 16;        // version, username
+
+    // Heartbeat. The server offers it during the handshake with its interval and how many intervals
+    // of silence mean a dead peer, a client that wants it answers with an empty HEARTBEAT once
+    // CONNECTED. From then on both sides PING every interval and answer each PING with a PONG
+    static final byte HEARTBEAT = 17;   // offer has interval in milliseconds + misses, the client's reply has no fields
+    static final byte PING = 18;        // token, echoed in the PONG
+    static final byte PONG = 19;        // token
+
+    // Offline delivery. A client that asked for the MAILBOX protocol during the handshake gets each page of
+    // waiting items followed by MAILBOX with the page's last id, and sends it back once it has read them
+    static final byte MAILBOX = 20;     // id of the last item in the page
+
+    // Message history, a page per request. The request names the conversation ("ALL" or the other user) and the
+    // oldest message id the client has, empty for the newest page. The reply is one HISTORY per message, newest
+    // first, then a HISTORY without text carrying the id to ask for next (empty once there is nothing older)
+    static final byte HISTORY = 21;     // conversation, message id, text
+
+    // Rooms, named "#name". A client joins and leaves with JOIN and LEAVE, the server confirms each with the same
+    // packet, and sends what is said in a room as ROOM to its members only. MSG to "#name" speaks in the room
+    static final byte JOIN = 22;        // room, the confirmation adds the comma separated members
+    static final byte LEAVE = 23;       // room
+    static final byte ROOM = 24;        // room, text
+
+    // Text prefix and the most string fields each type has on a text line, indexed by type
+    private static final String[] NAMES = {null, "MSG", "USERS", "FILE", "QUIT", "CONNECTED", "GROUP", "PRIVATE", "SERVER", "ERROR", "WAITING",
+            "FILE_START", "FILE_CHUNK", "FILE_END", "PRESENCE", "JOINED", "LEFT", "HEARTBEAT", "PING", "PONG", "MAILBOX", "HISTORY",
+            "JOIN", "LEAVE", "ROOM"};
+    private static final int[] MAX_FIELDS = {0, 2, 1, 2, 0, 0, 1, 1, 1, 1, 1, 4, 1, 1, 2, 2, 2, 2, 1, 1, 1, 3, 2, 1, 2};
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    final byte type;
+    final String[] fields;
+    final byte[] data;
+
+    // Encodings are cached, a broadcast encodes once per protocol and every recipient queues the same array
+    private volatile byte[] encodedBinary;
+    private volatile byte[] encodedText;
+
+    Packet(byte type, String[] fields, byte[] data) {
+        this.type = type;
+        this.fields = fields;
+        this.data = data;
+    }
+
+    static Packet of(byte type, String... fields) {
+        return new Packet(type, fields, null);
+    }
+
+    // Field at index, or null if the sender left it out
+    String field(int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+
+    static boolean isKnownType(int type) {
+        return type > 0 && type < NAMES.length;
+    }
+
+    // The encoding a recipient needs, shared between all recipients of this packet.
+    // Callers must not modify the returned array
+    byte[] encoded(boolean binary) {
+        if (binary) {
+            byte[] bytes = encodedBinary;
+            if (bytes == null) {
+                bytes = encode();
+                encodedBinary = bytes;
+            }
+            return bytes;
+        }
+        byte[] bytes = encodedText;
+        if (bytes == null) {
+            bytes = encodeText();
+            encodedText = bytes;
+        }
+        return bytes;
+    }
+
+    // Binary encoding, header included
+    byte[] encode() {
+        ByteBuffer buffer = encodeHead(type, fields, data != null ? data.length : -1, data != null ? data.length : 0);
+        if (data != null) {
+            buffer.put(data);
+        }
+        return buffer.array();
+    }
+
+    // Everything of a binary frame up to its data bytes, for data that is written separately
+    static byte[] encodeHead(byte type, String[] fields, int dataLength) {
+        return encodeHead(type, fields, dataLength, 0).array();
+    }
+
+    private static ByteBuffer encodeHead(byte type, String[] fields, int dataLength, int extraCapacity) {
+        byte[][] encodedFields = new byte[fields.length][];
+        int payload = 1 + 4 + Math.max(dataLength, 0);
+        for (int i = 0; i < fields.length; i++) {
+            encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payload += 4 + encodedFields[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload - Math.max(dataLength, 0) + extraCapacity);
+        buffer.put(type);
+        buffer.putInt(payload);
+        buffer.put((byte) fields.length);
+        for (byte[] field : encodedFields) {
+            buffer.putInt(field.length);
+            buffer.put(field);
+        }
+        buffer.putInt(dataLength);
+        return buffer;
+    }
+
+    // Text line encoding, terminating newline included
+    byte[] encodeText() {
+        return (toTextLine() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    String toTextLine() {
+        StringBuilder line = new StringBuilder(NAMES[type]);
+        for (String field : fields) {
+            // A text line can't carry line breaks, binary senders may have used them
+            line.append(':').append(field.replace('\r', ' ').replace('\n', ' '));
+        }
+        if (data != null) {
+            line.append(':').append(Base64.getEncoder().encodeToString(data));
+        }
+        return line.toString();
+    }
+
+    // Parse a text line, null for lines that aren't protocol messages
+    static Packet parseText(String line) {
+        int prefixEnd = line.indexOf(':');
+        String name = prefixEnd == -1 ? line : line.substring(0, prefixEnd);
+        byte type = 0;
+        for (int i = 1; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                type = (byte) i;
+                break;
+            }
+        }
+        if (type == 0) {
+            return null;
+        }
+        if (prefixEnd == -1 || MAX_FIELDS[type] == 0) {
+            return new Packet(type, NO_FIELDS, null);
+        }
+
+        boolean hasData = type == FILE;
+        String[] parts = line.split(":", MAX_FIELDS[type] + (hasData ? 2 : 1));
+        int fieldCount = Math.min(parts.length - 1, MAX_FIELDS[type]);
+        String[] fields = new String[fieldCount];
+        System.arraycopy(parts, 1, fields, 0, fieldCount);
+
+        byte[] data = null;
+        if (hasData && parts.length == MAX_FIELDS[type] + 2) {
+            try {
+                data = Base64.getDecoder().decode(parts[parts.length - 1]);
+            } catch (IllegalArgumentException e) {
+                // Leave data out, the handler reports the bad format
+            }
+        }
+        return new Packet(type, fields, data);
+    }
+
+    // Decode one binary frame from the buffer. Returns null and leaves the buffer untouched
+    // when the frame isn't complete yet
+    static Packet decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        byte type = buffer.get(start);
+        int payload = buffer.getInt(start + 1);
+        checkHeader(type, payload);
+        if (buffer.remaining() < HEADER_SIZE + payload) {
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE);
+        ByteBuffer body = buffer.slice();
+        body.limit(payload);
+        buffer.position(start + HEADER_SIZE + payload);
+        return decodePayload(type, body);
+    }
+
+    // Read one binary frame whose type byte has already been read, blocking until it is complete
+    static Packet read(DataInputStream in, int type) throws IOException {
+        int payload = in.readInt();
+        checkHeader((byte) type, payload);
+        byte[] bytes = new byte[payload];
+        in.readFully(bytes);
+        return decodePayload((byte) type, ByteBuffer.wrap(bytes));
+    }
+
+    // Read one binary frame, null at end of stream
+    static Packet read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        return read(in, type);
+    }
+
+    private static void checkHeader(byte type, int payload) throws IOException {
+        if (!isKnownType(type)) {
+            throw new IOException("Unknown frame type " + type);
+        }
+        if (payload < 5 || payload > MAX_PAYLOAD) {
+            throw new IOException("Bad frame length " + payload);
+        }
+    }
+
+    private static Packet decodePayload(byte type, ByteBuffer buffer) throws IOException {
+        try {
+            int fieldCount = buffer.get();
+            String[] fields = fieldCount == 0 ? NO_FIELDS : new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                int length = buffer.getInt();
+                fields[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            }
+            int dataLength = buffer.getInt();
+            byte[] data = null;
+            if (dataLength >= 0) {
+                data = new byte[dataLength];
+                buffer.get(data);
+            }
+            return new Packet(type, fields, data);
+        } catch (RuntimeException e) {
+            // Lengths inside the payload don't add up
+            throw new IOException("Malformed frame of type " + type, e);
+        }
+    }
+
+    // Read a UTF-8 text line straight from the byte stream, so the same stream can carry binary
+    // frames afterwards (a Reader would buffer ahead). first is the line's first byte if already read
+    static String readTextLine(DataInputStream in, int first) throws IOException {
+        return readTextLine(in, first, Integer.MAX_VALUE);
+    }
+
+    // As above, failing once the line is longer than maxLength bytes
+    static String readTextLine(DataInputStream in, int first, int maxLength) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b = first;
+        while (b != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed mid line");
+            }
+            if (line.size() > maxLength) {     // One over, for a trailing \r
+                throw new IOException("Line longer than " + maxLength + " bytes");
+            }
+            line.write(b);
+            b = in.read();
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        if (length > maxLength) {
+            throw new IOException("Line longer than " + maxLength + " bytes");
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    static String readTextLine(DataInputStream in) throws IOException {
+        return readTextLine(in, in.read());
+    }
+}
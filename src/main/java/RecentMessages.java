@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The last few messages of each conversation, kept in memory so a client that joins can be shown
+// what was just said without a database read. Each conversation is a fixed ring of slots that new
+// messages overwrite, holding the packet that was sent live (already encoded), so adding one costs
+// an array store and replaying one costs nothing but the send. The group chat is always kept,
+// private conversations only while active: the least recently used one goes once there are too many
+class RecentMessages {
+    private final int capacity;         // Messages per conversation, 0 keeps none
+    private final Ring group;
+    private final LinkedHashMap<String, Ring> pairs;    // By pairKey, least recently used first
+
+    public RecentMessages(int capacity, int maxConversations) {
+        this.capacity = Math.max(0, capacity);
+        this.group = new Ring(this.capacity);
+        this.pairs = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+                return size() > maxConversations;
+            }
+        };
+    }
+
+    // Remember a message that was just sent live, recipient "ALL" for the group chat. Returns its entry
+    // so the id can be filled in once it is stored, or null if nothing is kept
+    public Entry add(String sender, String recipient, Packet packet) {
+        if (capacity == 0) {
+            return null;
+        }
+        Entry entry = new Entry(sender, recipient, packet);
+        if ("ALL".equals(recipient)) {
+            group.add(entry);
+            return entry;
+        }
+        Ring ring;
+        synchronized (pairs) {
+            String key = pairKey(sender, recipient);
+            ring = pairs.get(key);
+            if (ring == null) {
+                ring = new Ring(capacity);
+                pairs.put(key, ring);
+            }
+        }
+        ring.add(entry);
+        return entry;
+    }
+
+    // The group chat to show a user who is joining, oldest first
+    public List<Entry> groupReplay() {
+        return group.snapshot();
+    }
+
+    // Their private conversations to show a user who is joining, oldest first, by the other user's name
+    public Map<String, List<Entry>> privateReplayFor(String username) {
+        Map<String, List<Entry>> replay = new LinkedHashMap<>();
+        List<Ring> rings = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        synchronized (pairs) {
+            // Iterating doesn't count as use, so joins don't keep idle conversations alive
+            for (Map.Entry<String, Ring> pair : pairs.entrySet()) {
+                String other = otherUser(pair.getKey(), username);
+                if (other != null) {
+                    others.add(other);
+                    rings.add(pair.getValue());
+                }
+            }
+        }
+        for (int i = 0; i < rings.size(); i++) {
+            List<Entry> entries = rings.get(i).snapshot();
+            if (!entries.isEmpty()) {
+                replay.put(others.get(i), entries);
+            }
+        }
+        return replay;
+    }
+
+    // The same key whichever of the two sent the message
+    private static String pairKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + "\n" + b : b + "\n" + a;
+    }
+
+    // The other user of a pair, or null if username isn't in it
+    private static String otherUser(String key, String username) {
+        int split = key.indexOf('\n');
+        String first = key.substring(0, split);
+        String second = key.substring(split + 1);
+        if (first.equals(username)) {
+            return second;
+        }
+        return second.equals(username) ? first : null;
+    }
+
+    // One message as it was sent. Its MessageHistory id is 0 until the writer has stored it
+    static class Entry {
+        final String sender;
+        final String recipient;
+        final Packet packet;
+        volatile long id = 0;
+
+        Entry(String sender, String recipient, Packet packet) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.packet = packet;
+        }
+
+        void stored(long id) {
+            this.id = id;
+        }
+    }
+
+    // Fixed number of slots, the oldest message is overwritten once they are full
+    private static class Ring {
+        private final Entry[] slots;
+        private int next = 0;
+        private int count = 0;
+
+        Ring(int capacity) {
+            this.slots = new Entry[capacity];
+        }
+
+        synchronized void add(Entry entry) {
+            slots[next] = entry;
+            next = (next + 1) % slots.length;
+            if (count < slots.length) {
+                count++;
+            }
+        }
+
+        synchronized List<Entry> snapshot() {
+            List<Entry> entries = new ArrayList<>(count);
+            if (count == 0) {
+                return entries;
+            }
+            int first = (next - count + slots.length) % slots.length;
+            for (int i = 0; i < count; i++) {
+                entries.add(slots[(first + i) % slots.length]);
+            }
+            return entries;
+        }
+    }
+}
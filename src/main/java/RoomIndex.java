@@ -0,0 +1,78 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Which clients are in which room, so a room message is only handed to that room's members rather
+// than checked against every connected client. Rooms exist while they have members: the first join
+// creates one and the last leave removes it. Each client also keeps the rooms it is in, to leave
+// them all when it disconnects. Like SessionRegistry, lookups and fan-out never lock
+class RoomIndex {
+    static final int MAX_ROOMS_PER_CLIENT = 32;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Set<ClientHandler>> members = new ConcurrentHashMap<>();
+
+    // "#name" for a valid room name given with or without the '#', null if it isn't one
+    static String normalize(String name) {
+        if (name == null) {
+            return null;
+        }
+        String bare = name.startsWith("#") ? name.substring(1) : name;
+        return NAME.matcher(bare).matches() ? "#" + bare : null;
+    }
+
+    // Add the client to the room, false if it was already in it
+    public boolean join(String room, ClientHandler handler) {
+        boolean[] added = new boolean[1];
+        // compute keeps this atomic with the last member leaving, which removes the room
+        members.compute(room, (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = set.add(handler);
+            return set;
+        });
+        handler.getRooms().add(room);
+        return added[0];
+    }
+
+    // Take the client out of the room, false if it wasn't in it
+    public boolean leave(String room, ClientHandler handler) {
+        boolean[] removed = new boolean[1];
+        members.computeIfPresent(room, (name, set) -> {
+            removed[0] = set.remove(handler);
+            return set.isEmpty() ? null : set;
+        });
+        handler.getRooms().remove(room);
+        return removed[0];
+    }
+
+    public boolean isMember(String room, ClientHandler handler) {
+        Set<ClientHandler> set = members.get(room);
+        return set != null && set.contains(handler);
+    }
+
+    // Live view of a room's members for fan-out, empty if the room doesn't exist
+    public Collection<ClientHandler> members(String room) {
+        Set<ClientHandler> set = members.get(room);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    // Comma separated usernames in the room
+    public String memberList(String room) {
+        StringBuilder list = new StringBuilder();
+        for (ClientHandler member : members(room)) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(member.getUsername());
+        }
+        return list.toString();
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
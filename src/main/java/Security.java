@@ -1,33 +1,39 @@
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
 
 public class Security {
 
-    private static String KEY = "eJ8p2L7tX5qR9vF3nA4kC6bY1mZ0sD8h";
-    private static String IV = "t6skcv82nIBe9JSl920nGDkwpSnodU23";
+    private static final String KEY = "eJ8p2L7tX5qR9vF3nA4kC6bY1mZ0sD8h";
+    private static final String IV = "t6skcv82nIBe9JSl920nGDkwpSnodU23";
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int STREAM_BUFFER = 64 * 1024;     // Streams and channels are processed this much at a time
 
     // AES encryption will be used: https://www.techtarget.com/searchsecurity/definition/Advanced-Encryption-Standard
 
-    public static String encrypt(String plainText) {
-        try {
-            byte[] keyBytes = KEY.getBytes(StandardCharsets.UTF_8);
-            byte[] ivBytes = IV.getBytes(StandardCharsets.UTF_8);
-
-            // Ensure length of 16 bytes
-            byte[] keyBytes16 = new byte[16];
-            System.arraycopy(keyBytes, 0, keyBytes16, 0, Math.min(keyBytes.length, 16));
-            byte[] ivBytes16 = new byte[16];
-            System.arraycopy(ivBytes, 0, ivBytes16, 0, Math.min(ivBytes.length, 16));
+    // Key material is derived once. Both are truncated to 16 bytes
+    private static final SecretKeySpec SECRET_KEY = new SecretKeySpec(first16Bytes(KEY), "AES");
+    private static final IvParameterSpec IV_SPEC = new IvParameterSpec(first16Bytes(IV));
 
-            SecretKeySpec secretKey = new SecretKeySpec(keyBytes16, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(ivBytes16);
+    // Looking up and initialising a Cipher costs far more than encrypting a chat line, so each thread
+    // keeps one per direction. doFinal leaves a cipher ready for the next message with the same key and IV
+    private static final ThreadLocal<Cipher> ENCRYPTOR = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> DECRYPTOR = new ThreadLocal<>();
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
-            byte[] encryptedData = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+    public static String encrypt(String plainText) {
+        try {
+            byte[] encryptedData = encrypt(plainText.getBytes(StandardCharsets.UTF_8));
             return Base64.getEncoder().encodeToString(encryptedData);
 
         } catch (Exception e) {
@@ -44,34 +50,120 @@ public class Security {
                 return null;
             }
 
-            byte[] keyBytes = KEY.getBytes(StandardCharsets.UTF_8);
-            byte[] ivBytes = IV.getBytes(StandardCharsets.UTF_8);
+            byte[] encryptedData = Base64.getDecoder().decode(encryptedText);
+            return new String(decrypt(encryptedData), StandardCharsets.UTF_8);
+
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+        return run(ENCRYPTOR, Cipher.ENCRYPT_MODE, plain);
+    }
 
-            byte[] keyBytes16 = new byte[16];
-            System.arraycopy(keyBytes, 0, keyBytes16, 0, Math.min(keyBytes.length, 16));
+    public static byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
+        return run(DECRYPTOR, Cipher.DECRYPT_MODE, encrypted);
+    }
 
-            byte[] ivBytes16 = new byte[16];
-            System.arraycopy(ivBytes, 0, ivBytes16, 0, Math.min(ivBytes.length, 16));
+    // Encrypt everything remaining in input into output, returns the number of bytes written.
+    // Output needs room for the input plus one block of padding
+    public static int encrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        return run(ENCRYPTOR, Cipher.ENCRYPT_MODE, input, output);
+    }
 
-            SecretKeySpec secretKey = new SecretKeySpec(keyBytes16, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(ivBytes16);
+    public static int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        return run(DECRYPTOR, Cipher.DECRYPT_MODE, input, output);
+    }
 
-            try {
-                byte[] encryptedData = Base64.getDecoder().decode(encryptedText);
+    // Streaming versions for files and other large payloads. Memory use stays at one buffer whatever
+    // the size, and the output is the same as encrypting the whole content at once (without Base64)
 
-                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                cipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
+    // Everything written is encrypted on its way to out, closing it writes the final block
+    public static OutputStream encryptingStream(OutputStream out) throws GeneralSecurityException {
+        return new CipherOutputStream(out, newCipher(Cipher.ENCRYPT_MODE));
+    }
 
-                byte[] decryptedData = cipher.doFinal(encryptedData);
+    public static InputStream decryptingStream(InputStream in) throws GeneralSecurityException {
+        return new CipherInputStream(in, newCipher(Cipher.DECRYPT_MODE));
+    }
 
-                return new String(decryptedData, StandardCharsets.UTF_8);
-            } catch (IllegalArgumentException e) {
-                return null;
-            } catch (Exception e) {
-                return null;
-            }
-        } catch (Exception e) {
-            return null;
+    // Encrypt everything readable from in into out, e.g. from one FileChannel to another. Returns bytes written
+    public static long encrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        return transform(newCipher(Cipher.ENCRYPT_MODE), in, out);
+    }
+
+    public static long decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        return transform(newCipher(Cipher.DECRYPT_MODE), in, out);
+    }
+
+    private static long transform(Cipher cipher, ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        ByteBuffer input = ByteBuffer.allocate(STREAM_BUFFER);
+        ByteBuffer output = ByteBuffer.allocate(STREAM_BUFFER + cipher.getBlockSize());
+        long written = 0;
+        while (in.read(input) != -1) {
+            input.flip();
+            cipher.update(input, output);
+            input.compact();
+            written += drain(output, out);
+        }
+        input.flip();
+        cipher.doFinal(input, output);
+        written += drain(output, out);
+        return written;
+    }
+
+    private static int drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    // A cipher of its own, for a stream that may outlive the calling thread's use of the shared ones
+    private static Cipher newCipher(int mode) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, SECRET_KEY, IV_SPEC);
+        return cipher;
+    }
+
+    private static byte[] run(ThreadLocal<Cipher> cache, int mode, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = cipher(cache, mode);
+        try {
+            return cipher.doFinal(data);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            cache.remove();     // A failed doFinal can leave the cipher mid-message, start clean next time
+            throw e;
+        }
+    }
+
+    private static int run(ThreadLocal<Cipher> cache, int mode, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        Cipher cipher = cipher(cache, mode);
+        try {
+            return cipher.doFinal(input, output);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            cache.remove();
+            throw e;
         }
     }
+
+    private static Cipher cipher(ThreadLocal<Cipher> cache, int mode) throws GeneralSecurityException {
+        Cipher cipher = cache.get();
+        if (cipher == null) {
+            cipher = newCipher(mode);
+            cache.set(cipher);
+        }
+        return cipher;
+    }
+
+    // Ensure length of 16 bytes
+    private static byte[] first16Bytes(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes16 = new byte[16];
+        System.arraycopy(bytes, 0, bytes16, 0, Math.min(bytes.length, 16));
+        return bytes16;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Server start-up options. Each option can be given as "--key=value" on the command line
+// or as a "-Dluconnect.key=value" system property, command line wins
+class ServerConfig {
+
+    enum Mode {
+        THREADED,   // one blocking platform thread per socket
+        VIRTUAL,    // one blocking virtual thread per socket (Java 21+)
+        NIO         // selector based reactors
+    }
+
+    private final Map<String, String> options = new HashMap<>();
+
+    private ServerConfig() {
+    }
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                config.options.put(arg.substring(2, split), arg.substring(split + 1));
+            } else {
+                System.out.println("Ignoring unknown server argument: " + arg);
+            }
+        }
+        return config;
+    }
+
+    public Mode getMode() {
+        return getEnum("mode", Mode.THREADED);
+    }
+
+    public int getPort() {
+        return getInt("port", 9876);
+    }
+
+    // Clients chatting at the same time, the rest wait in the queue. Counts every node of a cluster
+    public int getMaxClients() {
+        return getInt("maxClients", 3);
+    }
+
+    // Reactor threads used by the NIO engine, each owns one selector
+    public int getReactorThreads() {
+        return getInt("reactors", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    // Worker threads used by the NIO engine for blocking work: logins, and file packets (recipient lookups, disk writes)
+    public int getHandshakeThreads() {
+        return getInt("handshakeThreads", 4);
+    }
+
+    // Threads checking logins against the database, cached logins don't need one
+    public int getAuthThreads() {
+        return getInt("authThreads", 4);
+    }
+
+    // Logins that may wait for an auth thread, beyond that they are turned away as busy
+    public int getAuthQueueCapacity() {
+        return getInt("authQueue", 256);
+    }
+
+    // Longest a login waits for its check before it is turned away as busy
+    public int getAuthTimeoutMillis() {
+        return getInt("authTimeoutMillis", 5000);
+    }
+
+    // Time a new connection has to send its credentials
+    public long getHandshakeTimeoutMillis() {
+        return getInt("handshakeTimeoutSeconds", 10) * 1000L;
+    }
+
+    // Quiet waiting and connected clients get a small write this often, which fails once a dead peer is noticed
+    public long getProbeIntervalMillis() {
+        return Math.max(1, getInt("probeSeconds", 60)) * 1000L;
+    }
+
+    // Close clients nothing has been read from for this long, 0 keeps them (clients send nothing while idle)
+    public long getIdleTimeoutMillis() {
+        return getInt("idleTimeoutSeconds", 0) * 1000L;
+    }
+
+    // Heartbeat interval offered to clients, 0 turns the heartbeat off
+    public long getHeartbeatMillis() {
+        return getInt("heartbeatSeconds", 15) * 1000L;
+    }
+
+    // Heartbeat intervals without a word from a client before it is taken for dead, at least 2 to allow for jitter
+    public int getHeartbeatMisses() {
+        return Math.max(2, getInt("heartbeatMisses", 3));
+    }
+
+    // Mailbox items handed to a returning user before waiting for them to be acknowledged
+    public int getMailboxPageSize() {
+        return getInt("mailboxPage", 50);
+    }
+
+    // Messages per page of history sent to a client
+    public int getHistoryPageSize() {
+        return getInt("historyPage", 50);
+    }
+
+    // Messages of each conversation kept in memory to show clients as they join, 0 turns it off
+    public int getRecentMessages() {
+        return getInt("recentMessages", 50);
+    }
+
+    // Private conversations kept in memory at once, the least recently active are dropped first
+    public int getRecentConversations() {
+        return getInt("recentConversations", 1000);
+    }
+
+    // This server's name in a cluster
+    public String getNodeId() {
+        return getString("nodeId", "node-" + getPort());
+    }
+
+    // Port other cluster nodes connect to, on the loopback address
+    public int getClusterPort() {
+        return getInt("clusterPort", getPort() + 1000);
+    }
+
+    // The other cluster nodes as "node@host:port,...", none runs the server on its own
+    public String getPeers() {
+        return getString("peers", "").trim();
+    }
+
+    // Frames each client may have waiting before the overflow policy kicks in
+    public int getOutboundCapacity() {
+        return getInt("outboundCapacity", 1024);
+    }
+
+    // drop_oldest, disconnect or spill
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return getEnum("overflowPolicy", OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    // async: senders don't wait for the message history commit, sync: they wait for their batch to commit
+    public MessagePersister.Durability getDurability() {
+        return getEnum("durability", MessagePersister.Durability.ASYNC);
+    }
+
+    // Messages that may wait for the history writer before senders are held back
+    public int getPersistQueueCapacity() {
+        return getInt("persistQueue", 10000);
+    }
+
+    // Most messages committed in one transaction
+    public int getPersistBatchSize() {
+        return getInt("persistBatch", 256);
+    }
+
+    // Longest a message waits for its batch to fill before it is committed anyway
+    public int getPersistFlushMillis() {
+        return getInt("persistFlushMillis", 20);
+    }
+
+    String getString(String key, String defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            value = System.getProperty("luconnect." + key);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Enum options are given in any case, e.g. "--mode=nio"
+    <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid value for " + key + ": " + value + ", using " + defaultValue.name().toLowerCase());
+            return defaultValue;
+        }
+    }
+}
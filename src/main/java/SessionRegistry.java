@@ -0,0 +1,49 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Who is logged in. A username is claimed by one connection from the moment it authenticates,
+// through the waiting room, until it disconnects, so the duplicate login check is a single atomic step.
+// Lookups and iteration never lock, ConcurrentHashMap spreads writers over its bins
+class SessionRegistry {
+    private final ConcurrentHashMap<String, ClientTransport> claims = new ConcurrentHashMap<>();     // Waiting or connected
+    private final ConcurrentHashMap<String, ClientHandler> active = new ConcurrentHashMap<>();       // Connected only
+
+    // Reserve the username for this connection, false if another connection holds it
+    public boolean claim(String username, ClientTransport transport) {
+        ClientTransport holder = claims.putIfAbsent(username, transport);
+        return holder == null || holder == transport;
+    }
+
+    // Give the username up, only if this connection still holds it. Safe to call more than once
+    public void release(String username, ClientTransport transport) {
+        claims.remove(username, transport);
+    }
+
+    public void activate(String username, ClientHandler handler) {
+        active.put(username, handler);
+    }
+
+    // Remove from the active users, returns false if it wasn't there
+    public boolean deactivate(String username) {
+        return active.remove(username) != null;
+    }
+
+    public ClientHandler get(String username) {
+        return active.get(username);
+    }
+
+    // Live view of the connected handlers for fan-out. Weakly consistent, so clients joining
+    // or leaving during a broadcast may or may not get it, but iteration never fails or blocks
+    public Collection<ClientHandler> handlers() {
+        return active.values();
+    }
+
+    // Comma separated usernames of the connected clients
+    public String userList() {
+        return String.join(",", active.keySet());
+    }
+
+    public int size() {
+        return active.size();
+    }
+}
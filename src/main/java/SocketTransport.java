@@ -0,0 +1,144 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Blocking transport, one thread reads the socket for the whole life of the connection,
+// and once connected a second task drains the session's outbound queue into the channel
+class SocketTransport extends ClientTransport implements Runnable {
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final LUConnectServer server;
+    private final Executor executor;
+    private final PrintWriter writer;
+    private final ReentrantLock lineLock = new ReentrantLock();     // Handshake lines against the session taking over
+    private volatile OutboundQueue outbound;
+    private volatile boolean closed = false;
+
+    public SocketTransport(SocketChannel channel, LUConnectServer server, Executor executor) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.server = server;
+        this.executor = executor;
+        this.writer = new PrintWriter(socket.getOutputStream(), true);
+        socket.setKeepAlive(true);     // Let TCP notice peers that vanished without closing
+    }
+
+    @Override
+    protected void writeLine(String line) {
+        boolean failed;
+        lineLock.lock();
+        try {
+            if (outbound != null) {
+                return;     // The session's writer owns the socket now
+            }
+            writer.println(line);
+            failed = writer.checkError();
+        } finally {
+            lineLock.unlock();
+        }
+        if (failed) {
+            // PrintWriter swallows write errors, a waiter that vanished shows up here
+            close();
+        }
+    }
+
+    // From here on only the drain task writes. A line already being written finishes first,
+    // later ones are dropped, and CONNECTED goes out ahead of anything queued meanwhile
+    @Override
+    public void startSession(String connectedLine, OutboundQueue queue) {
+        lineLock.lock();
+        try {
+            this.outbound = queue;
+        } finally {
+            lineLock.unlock();
+        }
+        Outbound connected = new Outbound.Bytes((connectedLine + "\n").getBytes(StandardCharsets.UTF_8));
+        executor.execute(() -> drain(connected));
+    }
+
+    // Write queued items as they come. Going through the channel lets file chunks use transferTo
+    private void drain(Outbound first) {
+        OutboundQueue queue = outbound;
+        try {
+            Outbound item = first;
+            do {
+                try {
+                    while (!item.writeTo(channel)) {
+                        // Blocking channel, only a partial transferTo ends up here
+                    }
+                } finally {
+                    item.release();
+                }
+            } while ((item = queue.take()) != null);
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("Write to " + getRemoteAddress() + " failed: " + e.getMessage());
+            }
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Lines from sendLine are already written, closing the queue stops the writer task
+        closed = true;
+        OutboundQueue queue = outbound;
+        if (queue != null) {
+            queue.close();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void abort() {
+        close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void run() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            server.onConnectionOpened(this);
+
+            // Continuously read incoming lines or frames, the server decides what they mean.
+            // The state is checked after the first byte arrives, since a waiting client can be
+            // connected (and switch to binary) while this thread is blocked
+            while (!closed) {
+                int first = in.read();
+                if (first == -1) {
+                    break;
+                }
+                touch();
+                if (isBinary() && getState() == State.CONNECTED) {
+                    server.onPacket(this, Packet.read(in, first));
+                } else {
+                    server.onLine(this, Packet.readTextLine(in, first, maxLineLength()));
+                }
+            }
+        } catch (IOException e) {
+            // Closing the socket ourselves ends the blocked read with an exception
+            if (!closed) {
+                System.out.println("Connection " + getRemoteAddress() + " dropped: " + e.getMessage());
+            }
+        } finally {
+            close();
+            server.onConnectionClosed(this);
+        }
+    }
+}
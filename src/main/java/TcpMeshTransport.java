@@ -0,0 +1,198 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Every node listens on its cluster port and dials every peer. Each link only carries one direction:
+// a node writes to its peers over the connections it dialled and reads from the ones it accepted,
+// so there is no deciding which of two simultaneous connections to keep. A dialled link says which
+// node it comes from with a CONNECTED frame, then carries binary Packet frames. Each peer has its own
+// bounded queue and writer thread, which redials with a growing delay whenever the link breaks.
+// Listens on the loopback address only, nodes on other hosts would need authentication first
+class TcpMeshTransport implements ClusterTransport {
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long MAX_RETRY_MILLIS = 2000;
+
+    private final String nodeId;
+    private final int port;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed = false;
+
+    public TcpMeshTransport(String nodeId, int port, Map<String, InetSocketAddress> peerAddresses) {
+        this.nodeId = nodeId;
+        this.port = port;
+        for (Map.Entry<String, InetSocketAddress> peer : peerAddresses.entrySet()) {
+            peers.put(peer.getKey(), new Peer(peer.getKey(), peer.getValue()));
+        }
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> accept(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers.values()) {
+            Thread writer = new Thread(peer::run, "cluster-out-" + peer.node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        System.out.println("Cluster node " + nodeId + " listening on port " + port + ", peers " + peers.keySet());
+    }
+
+    @Override
+    public void send(String node, Packet packet) {
+        Peer peer = peers.get(node);
+        if (peer != null) {
+            peer.offer(packet);
+        }
+    }
+
+    @Override
+    public void broadcast(Packet packet) {
+        for (Peer peer : peers.values()) {
+            peer.offer(packet);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Peer peer : peers.values()) {
+            peer.disconnect();
+        }
+        System.out.println("Cluster transport closed, " + dropped.get() + " messages dropped");
+    }
+
+    private void accept(Listener listener) {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> read(socket, listener), "cluster-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // One accepted link: the dialling node's CONNECTED, then its messages until it goes
+    private void read(Socket socket, Listener listener) {
+        String node = null;
+        try (Socket link = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+            Packet hello = Packet.read(in);
+            if (hello == null || hello.type != Packet.CONNECTED || !peers.containsKey(hello.field(0))) {
+                System.out.println("Cluster link from " + link.getRemoteSocketAddress() + " is not a known node, closing");
+                return;
+            }
+            node = hello.field(0);
+            Thread.currentThread().setName("cluster-in-" + node);
+            listener.onPeerUp(node);
+
+            Packet packet;
+            while ((packet = Packet.read(in)) != null) {
+                listener.onMessage(node, packet);
+            }
+        } catch (IOException e) {
+            // Peer went away, reported below
+        } finally {
+            if (node != null) {
+                listener.onPeerDown(node);
+            }
+        }
+    }
+
+    // The link to one peer, written by its own thread
+    private class Peer {
+        final String node;
+        final InetSocketAddress address;
+        final BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile Socket socket;
+        private Packet unsent;      // Taken from the queue when the link broke, sent first on the next one
+
+        Peer(String node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        void offer(Packet packet) {
+            if (!queue.offer(packet) && dropped.incrementAndGet() % 1000 == 1) {
+                System.out.println("Cluster queue to " + node + " is full, dropping messages");
+            }
+        }
+
+        void run() {
+            long retryMillis = 100;
+            while (!closed) {
+                try {
+                    socket = new Socket();
+                    socket.connect(address, 5000);
+                    socket.setTcpNoDelay(true);
+                    retryMillis = 100;
+                    write(new BufferedOutputStream(socket.getOutputStream()));
+                } catch (IOException e) {
+                    // Not up yet or gone, try again shortly
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    disconnect();
+                }
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+            }
+        }
+
+        // Send our CONNECTED, then whatever is queued. Flushed whenever the queue runs dry
+        private void write(OutputStream out) throws IOException, InterruptedException {
+            out.write(Packet.of(Packet.CONNECTED, nodeId).encode());
+            out.flush();
+            while (!closed) {
+                Packet packet = unsent != null ? unsent : queue.take();
+                unsent = packet;
+                out.write(packet.encode());
+                unsent = null;
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        }
+
+        void disconnect() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+}
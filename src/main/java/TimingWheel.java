@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// Hashed timing wheel for the per-connection timeouts. A ring of buckets is advanced one bucket per
+// tick by a single thread, a timeout goes into the bucket its deadline falls in (with a count of
+// whole turns left for long delays). Scheduling is O(1) and a tick only touches one bucket, so
+// thousands of connections cost a list entry each rather than a timer or a heap entry each.
+// Deadlines are rounded up to the next tick, expired tasks run on the given executor
+class TimingWheel {
+    private final long tickMillis;
+    private final List<List<Timeout>> buckets;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();   // Scheduled since the last tick
+    private final Executor executor;
+    private final long startNanos = System.nanoTime();
+    private long tick = 0;  // Ticks processed, only touched by the wheel thread
+
+    public TimingWheel(long tickMillis, int bucketCount, Executor executor, String threadName) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.executor = executor;
+        this.buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Run the task once at least delayMillis have passed
+    public void schedule(Runnable task, long delayMillis) {
+        long deadline = (System.nanoTime() - startNanos) / 1_000_000 + Math.max(0, delayMillis);
+        added.add(new Timeout(task, (deadline + tickMillis - 1) / tickMillis));
+    }
+
+    private void run() {
+        while (true) {
+            long next = startNanos + (tick + 1) * tickMillis * 1_000_000;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                long ticks = Math.max(timeout.deadlineTick, tick);   // Already due ones fire on this tick
+                timeout.rounds = (ticks - tick) / buckets.size();
+                buckets.get((int) (ticks % buckets.size())).add(timeout);
+            }
+
+            Iterator<Timeout> it = buckets.get((int) (tick % buckets.size())).iterator();
+            while (it.hasNext()) {
+                timeout = it.next();
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    continue;
+                }
+                it.remove();
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        long rounds;    // Whole turns of the wheel still to wait
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Username to user_id, so storing a message doesn't have to look its users up. Entries are added
+// at login (and on the first lookup otherwise) and least recently used ones go once it is full.
+// Ids never change for a username, only registering or removing a user invalidates one
+class UserIdCache {
+    static final int MISSING = -1;
+
+    private final LinkedHashMap<String, Integer> ids;
+
+    public UserIdCache(int capacity) {
+        this.ids = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // The cached id, or MISSING
+    public synchronized int get(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : MISSING;
+    }
+
+    public synchronized void put(String username, int id) {
+        if (id != MISSING) {
+            ids.put(username, id);
+        }
+    }
+
+    public synchronized void invalidate(String username) {
+        ids.remove(username);
+    }
+}
@@ -0,0 +1,43 @@
+// Estimates how long a waiting client will wait, from how the chat has actually been used.
+// Keeps exponentially weighted moving averages of session length and of the gap between
+// departures; each departure frees one slot, so position N waits about N gaps
+class WaitTimeEstimator {
+    private static final double ALPHA = 0.2;    // Weight of the newest sample
+    private static final long DEFAULT_GAP_MILLIS = 2 * 60 * 1000;    // Used until there is data, the old fixed guess
+
+    private final int capacity;
+    private double averageSessionMillis = -1;
+    private double averageGapMillis = -1;
+    private long lastDeparture = -1;
+
+    public WaitTimeEstimator(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // A connected client left after the given time in the chat
+    public synchronized void recordDeparture(long sessionMillis, long now) {
+        averageSessionMillis = average(averageSessionMillis, sessionMillis);
+        if (lastDeparture >= 0) {
+            averageGapMillis = average(averageGapMillis, now - lastDeparture);
+        }
+        lastDeparture = now;
+    }
+
+    // Expected wait in whole minutes (at least 1) for the given queue position
+    public synchronized int estimateMinutes(int position) {
+        double gap;
+        if (averageGapMillis >= 0) {
+            gap = averageGapMillis;
+        } else if (averageSessionMillis >= 0) {
+            // One departure seen so far, with every slot busy a slot frees up every session/capacity
+            gap = averageSessionMillis / capacity;
+        } else {
+            gap = DEFAULT_GAP_MILLIS;
+        }
+        return (int) Math.max(1, Math.ceil(position * gap / 60000.0));
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : ALPHA * sample + (1 - ALPHA) * current;
+    }
+}
@@ -0,0 +1,159 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Times Security.encrypt/decrypt, which reuse a cipher per thread, against the way they used to work:
+// key material derived and Cipher.getInstance looked up on every call. No test framework, run it after building:
+//
+//   java -cp target/classes:target/test-classes CipherBenchmark [seconds per run] [threads] [forks]
+//
+// Reports nanoseconds per call for a chat line and a 4 KB message, on one thread and on several. Like JMH,
+// every measurement runs in JVMs of its own, so one variant's JIT profile and garbage can't skew the
+// other's, and the median of the forks is shown
+public class CipherBenchmark {
+    private static final String KEY = "eJ8p2L7tX5qR9vF3nA4kC6bY1mZ0sD8h";
+    private static final String IV = "t6skcv82nIBe9JSl920nGDkwpSnodU23";
+    private static final String LINE = "[12:34:56] alice: see you at the library at five, bring the notes";
+    private static final String LARGE = "x".repeat(4096);
+
+    private static volatile int sink;   // Keeps results alive so the JIT can't drop the work
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--fork".equals(args[0])) {
+            // One measurement, asked for by the parent: operation, variant, threads, seconds
+            System.out.println(measure(args[1], args[2], Integer.parseInt(args[3]), Double.parseDouble(args[4])));
+            return;
+        }
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int forks = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        // Both ways must give the same ciphertext, or the stored history couldn't be read back
+        for (String text : new String[]{LINE, LARGE, ""}) {
+            String encrypted = perCallEncrypt(text);
+            if (!encrypted.equals(Security.encrypt(text)) || !text.equals(Security.decrypt(encrypted))
+                    || !text.equals(perCallDecrypt(encrypted))) {
+                System.out.println("Ciphertext differs for a " + text.length() + " character message");
+                System.exit(1);
+            }
+        }
+
+        for (int t : new int[]{1, threads}) {
+            System.out.println("--- " + t + " thread(s), ns per call, median of " + forks + " forks ---");
+            System.out.printf("%-28s %12s %12s%n", "", "per call", "thread local");
+            for (String operation : new String[]{"encrypt chat line", "decrypt chat line", "encrypt 4 KB", "decrypt 4 KB"}) {
+                System.out.printf("%-28s %12.0f %12.0f%n", operation,
+                        fork(operation, "per call", t, seconds, forks), fork(operation, "thread local", t, seconds, forks));
+            }
+        }
+    }
+
+    // Median of the given number of measurements, each in a fresh JVM
+    private static double fork(String operation, String variant, int threads, double seconds, int forks) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        double[] results = new double[forks];
+        for (int i = 0; i < forks; i++) {
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "CipherBenchmark", "--fork",
+                    operation, variant, String.valueOf(threads), String.valueOf(seconds))
+                    .redirectErrorStream(true)
+                    .start();
+            String last = null;
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    last = line;
+                }
+            }
+            if (process.waitFor() != 0 || last == null) {
+                throw new IOException("Fork for " + operation + " (" + variant + ") failed: " + last);
+            }
+            results[i] = Double.parseDouble(last);
+        }
+        Arrays.sort(results);
+        return results[forks / 2];
+    }
+
+    // Nanoseconds per call of one operation done one way, after a warm-up so it isn't timed while still interpreted
+    private static double measure(String operation, String variant, int threads, double seconds) throws Exception {
+        boolean perCall = "per call".equals(variant);
+        String encryptedLine = Security.encrypt(LINE);
+        String encryptedLarge = Security.encrypt(LARGE);
+        Callable<String> call;
+        switch (operation) {
+            case "encrypt chat line":
+                call = perCall ? () -> perCallEncrypt(LINE) : () -> Security.encrypt(LINE);
+                break;
+            case "decrypt chat line":
+                call = perCall ? () -> perCallDecrypt(encryptedLine) : () -> Security.decrypt(encryptedLine);
+                break;
+            case "encrypt 4 KB":
+                call = perCall ? () -> perCallEncrypt(LARGE) : () -> Security.encrypt(LARGE);
+                break;
+            default:
+                call = perCall ? () -> perCallDecrypt(encryptedLarge) : () -> Security.decrypt(encryptedLarge);
+                break;
+        }
+        time(call, threads, seconds / 2);
+        return time(call, threads, seconds);
+    }
+
+    // Average nanoseconds per call with every thread calling as fast as it can for the given time
+    private static double time(Callable<String> call, int threads, double seconds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + (long) (seconds * 1_000_000_000L);
+        List<Future<Long>> counts = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            counts.add(pool.submit(() -> {
+                long count = 0;
+                int hash = 0;
+                while (System.nanoTime() < deadline) {
+                    hash += call.call().length();
+                    count++;
+                }
+                sink += hash;
+                return count;
+            }));
+        }
+        long calls = 0;
+        for (Future<Long> count : counts) {
+            calls += count.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return (double) elapsed * threads / calls;
+    }
+
+    // Security.encrypt as it was, everything prepared again on each call
+    private static String perCallEncrypt(String plainText) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(first16Bytes(KEY), "AES"), new IvParameterSpec(first16Bytes(IV)));
+        return Base64.getEncoder().encodeToString(cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String perCallDecrypt(String encryptedText) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(first16Bytes(KEY), "AES"), new IvParameterSpec(first16Bytes(IV)));
+        return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedText)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] first16Bytes(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes16 = new byte[16];
+        System.arraycopy(bytes, 0, bytes16, 0, Math.min(bytes.length, 16));
+        return bytes16;
+    }
+}
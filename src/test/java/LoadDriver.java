@@ -0,0 +1,289 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Load driver for the server modes: starts a server in each mode, connects N binary clients and has
+// each send M group messages at once, then reports how fast they went out and reached everyone, and
+// the server's CPU time and allocated bytes per delivered message from its ThreadMXBean.
+// No test framework, run it after building:
+//
+//   java -cp target/classes:target/test-classes LoadDriver [clients] [messages] [modes] [port]
+//
+// e.g. "LoadDriver 10,100,1000 20 threaded,virtual,nio" runs every mode at each number of clients.
+// Users load0.. are registered with password "pw" first. Server output goes to loaddriver-<mode>.log
+public class LoadDriver {
+    private static final String PASSWORD = "pw";
+    private static final long QUIET_MILLIS = 3000;      // Stop waiting once nothing has arrived for this long
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--serve".equals(args[0])) {
+            serve(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String[] clientCounts = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] modes = (args.length > 2 ? args[2] : "threaded,virtual,nio").split(",");
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 9900;
+
+        int most = 0;
+        for (String count : clientCounts) {
+            most = Math.max(most, Integer.parseInt(count));
+        }
+        registerUsers(most);
+        for (String count : clientCounts) {
+            int clients = Integer.parseInt(count);
+            System.out.printf("%n%d clients x %d group messages, %d deliveries expected per mode%n",
+                    clients, messages, (long) clients * messages * (clients - 1));
+            System.out.printf("%-10s %12s %14s %12s %12s %14s %14s%n", "mode", "sent/s", "delivered/s", "delivered", "seconds",
+                    "cpu us/msg", "alloc B/msg");
+            for (String mode : modes) {
+                Server server = startServer(mode, clients, port);
+                try {
+                    run(server, mode, clients, messages, port);
+                } finally {
+                    server.stop();
+                }
+            }
+        }
+    }
+
+    // Runs the server in the process LoadDriver starts. Each line on stdin is answered with
+    // "SAMPLE <cpu nanos> <allocated bytes>", totalled over the server's live threads
+    private static void serve(String[] serverArgs) {
+        Thread sampler = new Thread(() -> {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            threads.setThreadCpuTimeEnabled(true);
+            threads.setThreadAllocatedMemoryEnabled(true);
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                while (in.readLine() != null) {
+                    long[] ids = threads.getAllThreadIds();
+                    long cpu = 0;
+                    long allocated = 0;
+                    for (long nanos : threads.getThreadCpuTime(ids)) {
+                        cpu += Math.max(0, nanos);      // -1 for a thread that has ended
+                    }
+                    for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+                        allocated += Math.max(0, bytes);
+                    }
+                    System.out.println("SAMPLE " + cpu + " " + allocated);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "load-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        LUConnectServer.main(serverArgs);
+    }
+
+    // The server reads the same database from the classpath
+    private static void registerUsers(int clients) {
+        DBConnection database = DBConnection.getInstance();
+        database.establishConnection();
+        for (int i = 0; i < clients; i++) {
+            if (!database.userExists("load" + i)) {
+                database.registerUser("load" + i, PASSWORD);
+            }
+        }
+    }
+
+    private static Server startServer(String mode, int clients, int port) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "LoadDriver", "--serve",
+                "--mode=" + mode, "--port=" + port, "--maxClients=" + clients, "--outboundCapacity=100000")
+                .redirectErrorStream(true)
+                .start();
+        Server server = new Server(process, new File("loaddriver-" + mode + ".log"));
+
+        // Ready once it accepts connections
+        long deadline = System.currentTimeMillis() + 20000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return server;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+                    server.stop();
+                    throw new IOException("Server in " + mode + " mode didn't start, see loaddriver-" + mode + ".log");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void run(Server server, String mode, int clients, int messages, int port) throws Exception {
+        String tag = "load-" + System.nanoTime() + " ";
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong lastDelivery = new AtomicLong();
+        List<Client> connected = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            connected.add(new Client("load" + i, port, tag, delivered, lastDelivery));
+        }
+        Thread.sleep(500);     // Join announcements settle
+
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch sent = new CountDownLatch(clients);
+        List<Thread> senders = new ArrayList<>();
+        for (Client client : connected) {
+            Thread sender = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int m = 0; m < messages; m++) {
+                        client.send(Packet.of(Packet.MSG, "ALL", tag + m));
+                    }
+                    client.flush();
+                } catch (IOException | InterruptedException e) {
+                    System.out.println(client.username + " stopped sending: " + e);
+                } finally {
+                    sent.countDown();
+                }
+            }, "sender-" + client.username);
+            sender.start();
+            senders.add(sender);
+        }
+
+        long expected = (long) clients * messages * (clients - 1);
+        long[] before = server.sample();
+        long start = System.nanoTime();
+        lastDelivery.set(start);
+        go.countDown();
+        sent.await();
+        long sendNanos = System.nanoTime() - start;
+        while (delivered.get() < expected && System.nanoTime() - lastDelivery.get() < QUIET_MILLIS * 1_000_000) {
+            Thread.sleep(50);
+        }
+        long elapsed = lastDelivery.get() - start;
+        long[] after = server.sample();     // Before the clients go, so the threads serving them still count
+        for (Client client : connected) {
+            client.close();
+        }
+
+        double seconds = elapsed / 1e9;
+        long deliveries = Math.max(1, delivered.get());
+        System.out.printf("%-10s %12.0f %14.0f %11.1f%% %12.2f %14.2f %14.0f%n", mode, clients * messages / (sendNanos / 1e9),
+                delivered.get() / seconds, 100.0 * delivered.get() / expected, seconds,
+                (after[0] - before[0]) / 1e3 / deliveries, (double) (after[1] - before[1]) / deliveries);
+    }
+
+    // A server started with --serve. Its output is copied to the log, apart from the samples asked for
+    private static class Server {
+        private final Process process;
+        private final Writer commands;
+        private final BlockingQueue<long[]> samples = new LinkedBlockingQueue<>();
+
+        Server(Process process, File log) throws IOException {
+            this.process = process;
+            this.commands = new PrintWriter(process.getOutputStream(), true, StandardCharsets.UTF_8);
+            PrintWriter logWriter = new PrintWriter(log, StandardCharsets.UTF_8);
+            Thread pump = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) {
+                        if (line.startsWith("SAMPLE ")) {
+                            String[] parts = line.split(" ");
+                            samples.add(new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                        } else {
+                            logWriter.println(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The server has gone
+                } finally {
+                    logWriter.close();
+                }
+            }, "server-output");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        // CPU nanoseconds and allocated bytes of the server's threads so far
+        long[] sample() throws IOException, InterruptedException {
+            commands.write("sample\n");
+            commands.flush();
+            long[] sample = samples.poll(10, TimeUnit.SECONDS);
+            if (sample == null) {
+                throw new IOException("Server didn't answer a sample");
+            }
+            return sample;
+        }
+
+        void stop() throws InterruptedException {
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // One binary protocol client, counting the group messages of this run that reach it
+    private static class Client {
+        final String username;
+        private final Socket socket;
+        private final OutputStream out;
+
+        Client(String username, int port, String tag, AtomicLong delivered, AtomicLong lastDelivery) throws IOException {
+            this.username = username;
+            this.socket = new Socket("localhost", port);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            if (!"WELCOME".equals(Packet.readTextLine(in))) {
+                throw new IOException(username + " got no WELCOME");
+            }
+            Packet.readTextLine(in);    // PROTOCOLS, BIN1 is always offered
+            out.write(("PROTOCOL:" + Packet.BINARY_PROTOCOL + "\n" + username + ":" + PASSWORD + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String line;
+            while ((line = Packet.readTextLine(in)) != null && !line.startsWith("CONNECTED")) {
+                if (line.startsWith("ERROR") || line.startsWith("WAITING")) {
+                    throw new IOException(username + " not connected: " + line);
+                }
+            }
+
+            Thread reader = new Thread(() -> {
+                try {
+                    Packet packet;
+                    while ((packet = Packet.read(in)) != null) {
+                        if (packet.type == Packet.GROUP && packet.field(0).contains(tag)) {
+                            delivered.incrementAndGet();
+                            lastDelivery.set(System.nanoTime());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            }, "reader-" + username);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Packet packet) throws IOException {
+            out.write(packet.encode());
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Round-trips every packet type through the binary frames and the text lines, plus the size limits
+// at their edges. No test framework, run it after building:
+//
+//   java -cp target/classes:target/test-classes PacketCheck
+//
+// Prints each failure and exits with 1 if there was any
+public class PacketCheck {
+    // Fields each type carries on a text line, the binary side has no fixed count
+    private static final int[] TEXT_FIELDS = {0, 2, 1, 2, 0, 0, 1, 1, 1, 1, 1, 4, 1, 1, 2, 2, 2, 2, 1, 1, 1, 3, 2, 1, 2};
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        for (byte type = 1; Packet.isKnownType(type); type++) {
+            checkBinary(type);
+            checkText(type);
+        }
+        checkSpecialContent();
+        checkPartialFrames();
+        checkFieldLimits();
+        checkPayloadLimits();
+        checkLineLimits();
+        checkDecoderLineLimits();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All packet checks passed");
+    }
+
+    // Every field count up to the text one, with and without data, through both binary decoders
+    private static void checkBinary(byte type) throws IOException {
+        for (int count = 0; count <= TEXT_FIELDS[type]; count++) {
+            for (byte[] data : new byte[][]{null, new byte[0], {0, 1, 2, '\n', (byte) 0xff}}) {
+                Packet packet = new Packet(type, fields(type, count), data);
+                String label = "binary type " + type + " fields " + count + " data " + (data == null ? "none" : data.length);
+                byte[] frame = packet.encode();
+                same(label + " (buffer)", packet, Packet.decode(ByteBuffer.wrap(frame)));
+                same(label + " (stream)", packet, Packet.read(new DataInputStream(new ByteArrayInputStream(frame))));
+                check(label + " cached encoding", Arrays.equals(frame, packet.encoded(true)));
+            }
+        }
+    }
+
+    // A full text line parses back to the same fields, FILE's data travelling as Base64
+    private static void checkText(byte type) throws IOException {
+        byte[] data = type == Packet.FILE ? new byte[]{0, 1, 2, '\n', (byte) 0xff} : null;
+        Packet packet = new Packet(type, fields(type, TEXT_FIELDS[type]), data);
+        byte[] line = packet.encodeText();
+        check("text type " + type + " ends in newline", line[line.length - 1] == '\n');
+        String read = Packet.readTextLine(new DataInputStream(new ByteArrayInputStream(line)));
+        same("text type " + type, packet, Packet.parseText(read));
+    }
+
+    // Binary keeps newlines and colons, text flattens newlines and keeps colons in the last field
+    private static void checkSpecialContent() throws IOException {
+        Packet packet = Packet.of(Packet.MSG, "bob", "two\nlines: with colons\r\nand unicode \u00e9\u4e2d");
+        same("binary special content", packet, Packet.decode(ByteBuffer.wrap(packet.encode())));
+
+        Packet parsed = Packet.parseText(Packet.readTextLine(new DataInputStream(new ByteArrayInputStream(packet.encodeText()))));
+        check("text flattens line breaks", parsed != null
+                && "two lines: with colons  and unicode \u00e9\u4e2d".equals(parsed.field(1)));
+
+        check("unknown text line", Packet.parseText("HELLO:there") == null);
+        check("CRLF text line", "MSG:bob:hi".equals(Packet.readTextLine(new DataInputStream(new ByteArrayInputStream(
+                "MSG:bob:hi\r\n".getBytes(StandardCharsets.UTF_8))))));
+        Packet badFile = Packet.parseText("FILE:bob:x.pdf:not base64!");
+        check("bad Base64 leaves data out", badFile != null && badFile.data == null && badFile.fields.length == 2);
+    }
+
+    // A frame cut anywhere decodes to null and leaves the buffer where it was, then decodes once complete
+    private static void checkPartialFrames() throws IOException {
+        byte[] frame = Packet.of(Packet.PRIVATE, "hello").encode();
+        for (int cut = 0; cut < frame.length; cut++) {
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, cut);
+            boolean untouched = Packet.decode(buffer) == null && buffer.position() == 0;
+            check("partial frame of " + cut + " bytes", untouched);
+        }
+
+        // Two frames back to back come out one at a time
+        byte[] first = Packet.of(Packet.GROUP, "one").encode();
+        byte[] second = Packet.of(Packet.GROUP, "two").encode();
+        ByteBuffer both = ByteBuffer.allocate(first.length + second.length).put(first).put(second).flip();
+        Packet one = Packet.decode(both);
+        Packet two = Packet.decode(both);
+        check("back to back frames", one != null && "one".equals(one.field(0)) && two != null && "two".equals(two.field(0))
+                && !both.hasRemaining());
+    }
+
+    // The field count is a signed byte, so 127 is the most a frame carries. A field longer than its frame is refused
+    private static void checkFieldLimits() throws IOException {
+        String[] many = new String[127];
+        Arrays.fill(many, "f");
+        Packet packet = Packet.of(Packet.MSG, many);
+        same("127 fields", packet, Packet.decode(ByteBuffer.wrap(packet.encode())));
+
+        ByteBuffer overlong = ByteBuffer.wrap(Packet.of(Packet.MSG, "bob", "hi").encode());
+        overlong.putInt(Packet.HEADER_SIZE + 1, Integer.MAX_VALUE);    // First field's length
+        fails("field longer than its frame", () -> Packet.decode(overlong));
+
+        ByteBuffer negative = ByteBuffer.wrap(Packet.of(Packet.MSG, "bob", "hi").encode());
+        negative.put(Packet.HEADER_SIZE, (byte) -1);     // Field count
+        fails("negative field count", () -> Packet.decode(negative));
+    }
+
+    // A payload of MAX_PAYLOAD decodes, one byte more is refused from the header alone, as are unknown types
+    private static void checkPayloadLimits() throws IOException {
+        byte[] data = new byte[Packet.MAX_PAYLOAD - 1 - 4 - 4 - 3];    // Field count, field length + "bob", data length
+        data[data.length - 1] = 42;
+        Packet largest = new Packet(Packet.FILE_CHUNK, new String[]{"bob"}, data);
+        byte[] frame = largest.encode();
+        check("largest frame is MAX_PAYLOAD", ByteBuffer.wrap(frame).getInt(1) == Packet.MAX_PAYLOAD);
+        same("largest frame", largest, Packet.decode(ByteBuffer.wrap(frame)));
+
+        ByteBuffer tooLarge = ByteBuffer.allocate(Packet.HEADER_SIZE).put(Packet.FILE_CHUNK).putInt(Packet.MAX_PAYLOAD + 1).flip();
+        fails("payload over MAX_PAYLOAD", () -> Packet.decode(tooLarge));
+        ByteBuffer tooSmall = ByteBuffer.allocate(Packet.HEADER_SIZE).put(Packet.MSG).putInt(4).flip();
+        fails("payload under the minimum", () -> Packet.decode(tooSmall));
+        ByteBuffer unknown = ByteBuffer.allocate(Packet.HEADER_SIZE).put((byte) 99).putInt(5).flip();
+        fails("unknown type", () -> Packet.decode(unknown));
+    }
+
+    // A line of exactly the limit is read, with or without \r, one byte more is refused
+    private static void checkLineLimits() throws IOException {
+        int limit = Packet.MAX_HANDSHAKE_LINE;
+        String atLimit = "x".repeat(limit);
+        check("line at the limit", atLimit.equals(readLine(atLimit + "\n", limit)));
+        check("line at the limit with \\r", atLimit.equals(readLine(atLimit + "\r\n", limit)));
+        fails("line over the limit", () -> readLine(atLimit + "x\n", limit));
+        fails("line cut off", () -> readLine("MSG:bob", limit));
+        check("empty stream", readLine("", limit) == null);
+
+        // A legacy FILE line with the largest payload fits in a connected client's line limit
+        int base64 = (Packet.MAX_PAYLOAD + 2) / 3 * 4;
+        check("largest legacy FILE line fits", "FILE:".length() + 255 + 1 + 255 + 1 + base64 <= Packet.MAX_TEXT_LINE);
+    }
+
+    // The same limits for the NIO reactors' decoder, with the line in one read or split over several
+    private static void checkDecoderLineLimits() throws IOException {
+        int limit = Packet.MAX_HANDSHAKE_LINE;
+        String atLimit = "x".repeat(limit);
+        check("decoder line at the limit", atLimit.equals(decodeLine(limit, atLimit + "\n")));
+        check("decoder line at the limit with \\r, split before it", atLimit.equals(decodeLine(limit, atLimit, "\r\n")));
+        fails("decoder line over the limit in one read", () -> decodeLine(limit, "x".repeat(5000) + "\n"));
+        fails("decoder line over the limit, line end in a later read", () -> decodeLine(limit, "x".repeat(1000), "x".repeat(100) + "\n"));
+        fails("decoder line over the limit without a line end", () -> decodeLine(limit, "x".repeat(limit + 2)));
+
+        // Two lines in one read come out one at a time
+        NioServer.InboundDecoder decoder = new NioServer.InboundDecoder();
+        decoder.feed(ByteBuffer.wrap("alice:pw\r\nPROTOCOL:BIN1\n".getBytes(StandardCharsets.UTF_8)));
+        check("decoder back to back lines", "alice:pw".equals(decoder.nextLine(limit))
+                && "PROTOCOL:BIN1".equals(decoder.nextLine(limit)) && decoder.nextLine(limit) == null);
+    }
+
+    // Feed the reads one at a time, the first complete line or null
+    private static String decodeLine(int limit, String... reads) throws IOException {
+        NioServer.InboundDecoder decoder = new NioServer.InboundDecoder();
+        for (String read : reads) {
+            decoder.feed(ByteBuffer.wrap(read.getBytes(StandardCharsets.UTF_8)));
+            String line = decoder.nextLine(limit);
+            if (line != null) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private static String readLine(String text, int limit) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        return Packet.readTextLine(in, in.read(), limit);
+    }
+
+    // Sample fields for a type, different for each position so a mix up shows
+    private static String[] fields(byte type, int count) {
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            fields[i] = "t" + type + "f" + i;
+        }
+        // A text line's last field takes the rest of the line, colons included, unless FILE's data follows it
+        if (count > 0 && type != Packet.FILE) {
+            fields[count - 1] += ":with:colons";
+        }
+        return fields;
+    }
+
+    private static void same(String label, Packet expected, Packet actual) {
+        check(label, actual != null && actual.type == expected.type
+                && Arrays.equals(actual.fields, expected.fields) && Arrays.equals(actual.data, expected.data));
+    }
+
+    private static void check(String label, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED: " + label);
+        }
+    }
+
+    private static void fails(String label, Check check) {
+        try {
+            check.run();
+            check(label + " should have failed", false);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private interface Check {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Contention benchmark for SessionRegistry against the synchronized map the server used before it.
+// Router threads look recipients up, now and then walk every session for a broadcast, and rarely
+// see a user leave and come back. No test framework, run it after building:
+//
+//   java -cp target/classes:target/test-classes RegistryBenchmark [users] [seconds per run] [max threads]
+//
+// Reports operations per millisecond at 1, 2, 4... routers up to the maximum
+public class RegistryBenchmark {
+    private static final int LOOKUP_PERCENT = 98;   // Private message routing
+    private static final int FAN_OUT_PERCENT = 1;   // Group broadcasts and user lists, the rest are leave and rejoin
+
+    private static volatile long sink;      // Keeps results alive so the JIT can't drop the work
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+
+        ClientHandler[] handlers = new ClientHandler[users];
+        for (int i = 0; i < users; i++) {
+            handlers[i] = new ClientHandler(null, "user" + i, null, null);
+        }
+
+        System.out.printf("%d users, %d%% lookups, %d%% fan-outs, ops per ms%n", users, LOOKUP_PERCENT, FAN_OUT_PERCENT);
+        System.out.printf("%8s %16s %16s%n", "routers", "synchronized map", "SessionRegistry");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Registry synchronizedMap = new SynchronizedMapRegistry();
+            Registry sessionRegistry = new SessionRegistryAdapter();
+            for (ClientHandler handler : handlers) {
+                synchronizedMap.add(handler);
+                sessionRegistry.add(handler);
+            }
+            // Warm both up first so neither is timed while still interpreted
+            run(synchronizedMap, handlers, threads, seconds / 2);
+            run(sessionRegistry, handlers, threads, seconds / 2);
+            System.out.printf("%8d %16.0f %16.0f%n", threads,
+                    run(synchronizedMap, handlers, threads, seconds), run(sessionRegistry, handlers, threads, seconds));
+        }
+    }
+
+    // Operations per millisecond across all routers
+    private static double run(Registry registry, ClientHandler[] handlers, int threads, double seconds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + (long) (seconds * 1_000_000_000L);
+        List<Future<Long>> counts = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            counts.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long operations = 0;
+                long found = 0;
+                while (System.nanoTime() < deadline) {
+                    ClientHandler handler = handlers[random.nextInt(handlers.length)];
+                    int kind = random.nextInt(100);
+                    if (kind < LOOKUP_PERCENT) {
+                        if (registry.get(handler.getUsername()) != null) {
+                            found++;
+                        }
+                    } else if (kind < LOOKUP_PERCENT + FAN_OUT_PERCENT) {
+                        found += registry.fanOut();
+                    } else if (registry.remove(handler.getUsername())) {
+                        registry.add(handler);
+                    }
+                    operations++;
+                }
+                sink += found;
+                return operations;
+            }));
+        }
+        long operations = 0;
+        for (Future<Long> count : counts) {
+            operations += count.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return operations / (elapsed / 1e6);
+    }
+
+    private interface Registry {
+        boolean add(ClientHandler handler);     // False if the username is taken
+
+        boolean remove(String username);
+
+        ClientHandler get(String username);
+
+        int fanOut();       // Visits every session as a broadcast would
+    }
+
+    // As the server kept its clients before SessionRegistry
+    private static class SynchronizedMapRegistry implements Registry {
+        private final Map<String, ClientHandler> activeClients = Collections.synchronizedMap(new HashMap<>());
+
+        public boolean add(ClientHandler handler) {
+            synchronized (activeClients) {
+                if (activeClients.containsKey(handler.getUsername())) {
+                    return false;
+                }
+                activeClients.put(handler.getUsername(), handler);
+                return true;
+            }
+        }
+
+        public boolean remove(String username) {
+            return activeClients.remove(username) != null;
+        }
+
+        public ClientHandler get(String username) {
+            return activeClients.get(username);
+        }
+
+        public int fanOut() {
+            int visited = 0;
+            synchronized (activeClients) {
+                for (ClientHandler handler : activeClients.values()) {
+                    visited += handler.getUsername().length();
+                }
+            }
+            return visited;
+        }
+    }
+
+    // As the server uses SessionRegistry: the username is claimed atomically, then the session is activated
+    private static class SessionRegistryAdapter implements Registry {
+        private final SessionRegistry sessions = new SessionRegistry();
+        private final Map<String, ClientTransport> transports = new ConcurrentHashMap<>();
+
+        public boolean add(ClientHandler handler) {
+            ClientTransport transport = transports.computeIfAbsent(handler.getUsername(), username -> new IdleTransport());
+            if (!sessions.claim(handler.getUsername(), transport)) {
+                return false;
+            }
+            sessions.activate(handler.getUsername(), handler);
+            return true;
+        }
+
+        public boolean remove(String username) {
+            if (!sessions.deactivate(username)) {
+                return false;
+            }
+            sessions.release(username, transports.get(username));
+            return true;
+        }
+
+        public ClientHandler get(String username) {
+            return sessions.get(username);
+        }
+
+        public int fanOut() {
+            int visited = 0;
+            for (ClientHandler handler : sessions.handlers()) {
+                visited += handler.getUsername().length();
+            }
+            return visited;
+        }
+    }
+
+    // A connection that is never written to, only needed to claim a username
+    private static class IdleTransport extends ClientTransport {
+        protected void writeLine(String line) {
+        }
+
+        public void startSession(String connectedLine, OutboundQueue queue) {
+        }
+
+        public void close() {
+        }
+
+        public void abort() {
+        }
+
+        public String getRemoteAddress() {
+            return "benchmark";
+        }
+    }
+}
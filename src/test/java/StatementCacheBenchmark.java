@@ -0,0 +1,180 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.sqlite.SQLiteConfig;
+
+// Times the statements behind logins and stored messages prepared on every call, as DBConnection used
+// to, against prepared once per connection and reused, as it does now. Runs on a scratch database with
+// the server's tables and indexes and the given number of history rows. No test framework, run it after building:
+//
+//   java -cp target/classes:target/test-classes:<sqlite-jdbc jar> StatementCacheBenchmark [history rows] [calls per run]
+//
+// Reports microseconds per call, the scratch database is deleted afterwards
+public class StatementCacheBenchmark {
+    private static final int USERS = 1000;
+    private static final String LOGIN = "SELECT user_id, password FROM Users WHERE username = ?";
+    private static final String USER_ID = "SELECT user_id FROM Users WHERE username = ?";
+    private static final String INSERT = "INSERT INTO MessageHistory (contents, user_id, recipient_id, room) VALUES (?, ?, ?, ?)";
+
+    private static volatile long sink;      // Keeps results alive so the JIT can't drop the work
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        File file = File.createTempFile("statement-cache", ".db");
+        try {
+            // As the server's writer connection
+            SQLiteConfig config = new SQLiteConfig();
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            try (Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), config.toProperties())) {
+                long start = System.nanoTime();
+                fill(db, rows);
+                System.out.printf("%d users and %d history rows written in %.1f s%n", USERS, rows, (System.nanoTime() - start) / 1e9);
+
+                Map<String, PreparedStatement> cache = new HashMap<>();
+                System.out.printf("%-24s %12s %12s%n", "us per call", "per call", "cached");
+                for (String name : new String[]{"login", "user id", "insert"}) {
+                    // Warm both up first so neither is timed while still interpreted
+                    time(db, null, name, calls / 4);
+                    time(db, cache, name, calls / 4);
+                    System.out.printf("%-24s %12.2f %12.2f%n", name, time(db, null, name, calls), time(db, cache, name, calls));
+                }
+                for (PreparedStatement statement : cache.values()) {
+                    statement.close();
+                }
+            }
+        } finally {
+            for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                new File(file.getAbsolutePath() + suffix).delete();
+            }
+        }
+    }
+
+    // The tables and indexes the server's migrations create, with rows spread over the users, the group and a room
+    private static void fill(Connection db, int rows) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            statement.executeUpdate("CREATE TABLE Users (user_id INTEGER PRIMARY KEY AUTOINCREMENT, username TEXT NOT NULL UNIQUE, "
+                    + "password TEXT NOT NULL)");
+            statement.executeUpdate("CREATE TABLE MessageHistory (message_id INTEGER PRIMARY KEY AUTOINCREMENT, contents TEXT NOT NULL, "
+                    + "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, user_id INTEGER, recipient_id INTEGER, room TEXT)");
+            statement.executeUpdate("CREATE INDEX idx_history_user_recipient ON MessageHistory (user_id, recipient_id)");
+            statement.executeUpdate("CREATE INDEX idx_history_recipient ON MessageHistory (recipient_id, message_id)");
+            statement.executeUpdate("CREATE INDEX idx_history_room ON MessageHistory (room, message_id)");
+        }
+
+        db.setAutoCommit(false);
+        try (PreparedStatement user = db.prepareStatement("INSERT INTO Users (username, password) VALUES (?, ?)");
+             PreparedStatement message = db.prepareStatement(INSERT)) {
+            String password = Security.encrypt("pw");
+            for (int i = 0; i < USERS; i++) {
+                user.setString(1, "user" + i);
+                user.setString(2, password);
+                user.addBatch();
+            }
+            user.executeBatch();
+
+            String contents = Security.encrypt("a chat message of a typical length, give or take a few words");
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < rows; i++) {
+                bindMessage(message, contents, random);
+                message.addBatch();
+                if (i % 10_000 == 9_999) {
+                    message.executeBatch();
+                    db.commit();
+                }
+            }
+            message.executeBatch();
+            db.commit();
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    // Average microseconds per call, preparing each time when cache is null
+    private static double time(Connection db, Map<String, PreparedStatement> cache, String name, int calls) throws SQLException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String contents = Security.encrypt("hello");
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            String username = "user" + random.nextInt(USERS);
+            switch (name) {
+                case "login":
+                    found += query(db, cache, LOGIN, username);
+                    break;
+                case "user id":
+                    found += query(db, cache, USER_ID, username);
+                    break;
+                default:
+                    PreparedStatement insert = prepare(db, cache, INSERT);
+                    try {
+                        bindMessage(insert, contents, random);
+                        found += insert.executeUpdate();
+                    } finally {
+                        if (cache == null) {
+                            insert.close();
+                        }
+                    }
+                    break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += found;
+        return elapsed / 1e3 / calls;
+    }
+
+    private static int query(Connection db, Map<String, PreparedStatement> cache, String sql, String username) throws SQLException {
+        PreparedStatement statement = prepare(db, cache, sql);
+        try {
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt("user_id") : 0;
+            }
+        } finally {
+            if (cache == null) {
+                statement.close();
+            }
+        }
+    }
+
+    // As DBConnection's PooledConnection.prepare when there is a cache
+    private static PreparedStatement prepare(Connection db, Map<String, PreparedStatement> cache, String sql) throws SQLException {
+        if (cache == null) {
+            return db.prepareStatement(sql);
+        }
+        PreparedStatement statement = cache.get(sql);
+        if (statement == null) {
+            statement = db.prepareStatement(sql);
+            cache.put(sql, statement);
+        }
+        return statement;
+    }
+
+    // Mostly group messages, the rest private or in a room
+    private static void bindMessage(PreparedStatement message, String contents, ThreadLocalRandom random) throws SQLException {
+        int kind = random.nextInt(10);
+        message.setString(1, contents);
+        message.setInt(2, 1 + random.nextInt(USERS));
+        if (kind < 6) {
+            message.setInt(3, DBConnection.ALL_RECIPIENTS);
+            message.setNull(4, Types.VARCHAR);
+        } else if (kind < 9) {
+            message.setInt(3, 1 + random.nextInt(USERS));
+            message.setNull(4, Types.VARCHAR);
+        } else {
+            message.setInt(3, DBConnection.ROOM_RECIPIENTS);
+            message.setString(4, "#room" + random.nextInt(20));
+        }
+    }
+}